@@ -0,0 +1,735 @@
+package com.geoloqi.geotracks.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteException;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.geoloqi.android.sdk.LQSharedPreferences;
+import com.geoloqi.geotracks.model.ShareLink;
+import com.geoloqi.geotracks.receiver.OutboxReceiver;
+import com.geoloqi.geotracks.utils.ApiUtils;
+import com.geoloqi.geotracks.utils.HttpUtils;
+
+/**
+ * <p>A durable queue of changes to share links that must be sent to the
+ * server. Each change is written to the {@link LinkStore} together with
+ * its effect on the stored link, so the list shows it at once and it
+ * survives the process being killed.</p>
+ * 
+ * <p>Queued operations are sent together in a single pass over one
+ * persistent connection, whenever a new operation is queued, the
+ * network comes back or a retry is due. Operations that fail with a
+ * network or server error are retried with exponential backoff, and
+ * are left alone by every pass until their retry is due. The
+ * retry alarm does not wake the device, so retries ride along with the
+ * next time the device is awake anyway.</p>
+ * 
+ * <p>All work is done on a single background thread. Listeners are
+ * called on the main thread.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class LinkOutbox {
+    private static final String TAG = "LinkOutbox";
+    
+    public static final String PATH_LINK_CREATE = "link/create";
+    public static final String PATH_LINK_EXPIRE = "link/expire";
+    
+    /** Broadcast by the retry alarm to start a delivery pass. */
+    public static final String ACTION_DELIVER = "com.geoloqi.geotracks.action.DELIVER_OUTBOX";
+    
+    /** The delay before the first retry in milliseconds. */
+    private static final long MIN_BACKOFF = 30 * 1000;
+    
+    /** The longest delay between retries in milliseconds. */
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
+    
+    /** The number of failed attempts after which an operation is dropped. */
+    private static final int MAX_ATTEMPTS = 10;
+    
+    /** The longest a single delivery pass may keep the CPU awake. */
+    private static final long WAKE_LOCK_TIMEOUT = 60 * 1000;
+    
+    private static final int HTTP_MAX_CONNECTIONS = 1;
+    private static final int HTTP_CONNECT_TIMEOUT = 15 * 1000;
+    private static final int HTTP_SOCKET_TIMEOUT = 30 * 1000;
+    
+    private static final String CHARSET = "UTF-8";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    
+    /**
+     * Receives the outcome of each attempt to send an operation on
+     * the main thread.
+     * 
+     * @author Tristan Waddington
+     */
+    public interface OnDeliveryListener {
+        /** Called when a batch of operations and their changes have been stored. */
+        public void onQueued(List<Operation> operations);
+        
+        /** Called when the server has accepted an operation. */
+        public void onDelivered(Operation operation, JSONObject response);
+        
+        /** Called when an operation could not be sent yet and will be retried. */
+        public void onDeliveryDeferred(Operation operation);
+        
+        /** Called when an operation was rejected or gave up and has been dropped. */
+        public void onDeliveryFailed(Operation operation);
+    }
+    
+    /**
+     * Receives the result of {@link LinkOutbox#findOperation} on the
+     * main thread.
+     * 
+     * @author Tristan Waddington
+     */
+    public interface OnOperationFoundListener {
+        /**
+         * @param key the key that was looked up.
+         * @param operation the queued operation; null if it is no
+         *        longer queued.
+         */
+        public void onOperationFound(String key, Operation operation);
+    }
+    
+    /**
+     * An API request waiting in the outbox.
+     * 
+     * @author Tristan Waddington
+     */
+    public static class Operation {
+        /** A unique key, assigned when the operation is queued. */
+        public final String key;
+        
+        /** The API method to post to. */
+        public final String path;
+        
+        /** The JSON body of the request. */
+        public final String data;
+        
+        /** The token of the link the operation changes, if it has one. */
+        public final String token;
+        
+        /** The number of failed attempts to send the operation. */
+        public final int attempts;
+        
+        /** The earliest time to try again in milliseconds. */
+        public final long nextAttempt;
+        
+        public Operation(String key, String path, String data, String token,
+                int attempts, long nextAttempt) {
+            this.key = key;
+            this.path = path;
+            this.data = data;
+            this.token = token;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+    
+    /** The singleton instance of the object. */
+    private static LinkOutbox sInstance;
+    
+    private final Context mContext;
+    private final LinkStore mStore;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+    
+    /** True while a delivery pass is waiting to run. */
+    private final AtomicBoolean mDeliveryPending = new AtomicBoolean();
+    
+    /** Only accessed from the main thread. */
+    private final List<OnDeliveryListener> mListeners =
+            new ArrayList<OnDeliveryListener>();
+    
+    /** Only accessed from the outbox thread. */
+    private HttpClient mClient;
+    
+    /**
+     * The access token the server last refused. Operations wait for a
+     * new session rather than being sent with it again. Only accessed
+     * from the outbox thread.
+     */
+    private String mRejectedToken;
+    
+    private LinkOutbox(Context context) {
+        mContext = context.getApplicationContext();
+        mStore = LinkStore.getInstance(mContext);
+        mExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+    
+    /**
+     * Get a singleton instance of {@link LinkOutbox}.
+     */
+    public static synchronized LinkOutbox getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LinkOutbox(context);
+        }
+        return sInstance;
+    }
+    
+    /** Register a listener. Must be called from the main thread. */
+    public void addListener(OnDeliveryListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+    
+    /** Unregister a listener. Must be called from the main thread. */
+    public void removeListener(OnDeliveryListener listener) {
+        mListeners.remove(listener);
+    }
+    
+    /**
+     * Queue the creation of a new share link. A placeholder for the link
+     * is stored right away and replaced by the server's copy once the
+     * link has been created.
+     * 
+     * @param description
+     * @param location the location to start the link at or null.
+     * @return the key of the queued operation.
+     * @throws JSONException if the location is not a valid coordinate.
+     */
+    public String createLink(String description, Location location)
+            throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("description", description);
+        putLocation(data, location);
+        
+        String key = UUID.randomUUID().toString();
+        ShareLink pending = ShareLink.newPending(key, description,
+                System.currentTimeMillis());
+        Operation operation = new Operation(key, PATH_LINK_CREATE, data.toString(),
+                pending.token, 0, 0);
+        return queue(Collections.singletonList(operation),
+                Collections.singletonList(pending)).get(0);
+    }
+    
+    /**
+     * Queue the expiration of a share link. The link is marked as
+     * expired in the {@link LinkStore} right away.
+     * 
+     * @param link
+     * @param location the location the link was expired at or null.
+     * @return the key of the queued operation.
+     * @throws JSONException if the location is not a valid coordinate.
+     */
+    public String expireLink(ShareLink link, Location location)
+            throws JSONException {
+        return expireLinks(Collections.singletonList(link), location).get(0);
+    }
+    
+    /**
+     * Queue the expiration of several share links at once. The links
+     * are marked as expired in a single transaction and sent in a
+     * single delivery pass.
+     * 
+     * @param links
+     * @param location the location the links were expired at or null.
+     * @return the keys of the queued operations.
+     * @throws JSONException if the location is not a valid coordinate.
+     */
+    public List<String> expireLinks(List<ShareLink> links, Location location)
+            throws JSONException {
+        return expireLinks(links, location, 0);
+    }
+    
+    /**
+     * Queue the expiration of several share links before the location
+     * they were expired at is known. The links are marked as expired
+     * right away, but the operations are held back until
+     * {@link #releaseOperations} is called with their keys or the hold
+     * runs out, whichever comes first.
+     * 
+     * @param links
+     * @param hold the longest to wait for the location in milliseconds.
+     * @return the keys of the queued operations.
+     * @throws JSONException
+     */
+    public List<String> expireLinksLater(List<ShareLink> links, long hold)
+            throws JSONException {
+        return expireLinks(links, null, System.currentTimeMillis() + hold);
+    }
+    
+    private List<String> expireLinks(List<ShareLink> links, Location location,
+            long nextAttempt) throws JSONException {
+        List<Operation> operations = new ArrayList<Operation>(links.size());
+        List<ShareLink> expired = new ArrayList<ShareLink>(links.size());
+        for (ShareLink link : links) {
+            JSONObject data = new JSONObject();
+            data.put("token", link.token);
+            putLocation(data, location);
+            operations.add(new Operation(UUID.randomUUID().toString(), PATH_LINK_EXPIRE,
+                    data.toString(), link.token, 0, nextAttempt));
+            expired.add(link.expire());
+        }
+        return queue(operations, expired);
+    }
+    
+    /**
+     * Add a location to operations that are being held back and send
+     * them. Operations that have been sent already keep the data they
+     * were sent with.
+     * 
+     * @param keys the keys of the held operations.
+     * @param location the location to add or null if none was found.
+     */
+    public void releaseOperations(final List<String> keys, final Location location) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Operation operation : mStore.getOperations()) {
+                        if (!keys.contains(operation.key)) {
+                            continue;
+                        }
+                        
+                        JSONObject data = parseResponse(operation.data);
+                        try {
+                            putLocation(data, location);
+                        } catch (JSONException e) {
+                            Log.w(TAG, "Ignoring an invalid location.", e);
+                            data = parseResponse(operation.data);
+                        }
+                        
+                        // An operation that already failed keeps its backoff
+                        mStore.updateOperation(operation.key, data.toString(),
+                                operation.attempts > 0 ? operation.nextAttempt : 0);
+                    }
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to update the outbox!", e);
+                }
+                deliverNow();
+            }
+        });
+    }
+    
+    /**
+     * Add the coordinates of a location to a request body. Nothing is
+     * added if the location is unknown; the API falls back to the
+     * user's last reported location.
+     */
+    private static void putLocation(JSONObject data, Location location)
+            throws JSONException {
+        if (location != null) {
+            data.put("longitude", location.getLongitude());
+            data.put("latitude", location.getLatitude());
+        }
+    }
+    
+    /**
+     * Queue an API request and start a delivery pass.
+     * 
+     * @param path the API method to post to.
+     * @param data the body of the request.
+     * @param token the token of the link the request changes or null.
+     * @param link the changed link to store right away or null.
+     * @return the key of the queued operation.
+     */
+    public String queue(String path, JSONObject data, String token, ShareLink link) {
+        List<ShareLink> links = link != null ? Collections.singletonList(link)
+                : Collections.<ShareLink>emptyList();
+        return queue(Collections.singletonList(newOperation(path, data, token)),
+                links).get(0);
+    }
+    
+    /**
+     * Store a batch of operations and their changes in one transaction,
+     * then start a delivery pass.
+     * 
+     * @return the keys of the queued operations.
+     */
+    private List<String> queue(final List<Operation> operations,
+            final List<ShareLink> links) {
+        List<String> keys = new ArrayList<String>(operations.size());
+        for (Operation operation : operations) {
+            keys.add(operation.key);
+        }
+        
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mStore.queueOperations(operations, links);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to queue operations!", e);
+                    for (Operation operation : operations) {
+                        notifyFailed(operation);
+                    }
+                    return;
+                }
+                notifyQueued(operations);
+                deliverNow();
+            }
+        });
+        return keys;
+    }
+    
+    /**
+     * Look up a queued operation on the outbox thread. Every operation
+     * queued before this call has been stored by then, and the outcome
+     * of any pass that finished first reaches the delivery listeners
+     * before this listener is called.
+     * 
+     * @param key the key returned when the operation was queued.
+     * @param listener called on the main thread.
+     */
+    public void findOperation(final String key, final OnOperationFoundListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Operation found = null;
+                try {
+                    for (Operation operation : mStore.getOperations()) {
+                        if (operation.key.equals(key)) {
+                            found = operation;
+                            break;
+                        }
+                    }
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Failed to read the outbox!", e);
+                }
+                
+                final Operation result = found;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onOperationFound(key, result);
+                    }
+                });
+            }
+        });
+    }
+    
+    private static Operation newOperation(String path, JSONObject data, String token) {
+        return new Operation(UUID.randomUUID().toString(), path, data.toString(),
+                token, 0, 0);
+    }
+    
+    /**
+     * Send every queued operation that is due on a background thread.
+     * Does nothing if a pass is already waiting to run.
+     */
+    public void deliver() {
+        if (mDeliveryPending.compareAndSet(false, true)) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliverNow();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Send every queued operation whose next attempt is due. Operations
+     * that are backing off are left for the retry alarm, so a flapping
+     * network does not use up their attempts. Runs on the outbox thread.
+     */
+    private void deliverNow() {
+        mDeliveryPending.set(false);
+        mWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+        try {
+            List<Operation> operations = getDueOperations(mStore.getOperations());
+            String accessToken = LQSharedPreferences.getSessionAccessToken(mContext);
+            boolean hasSession = accessToken != null && !accessToken.equals(mRejectedToken);
+            
+            if (!operations.isEmpty() && (!isConnected() || !hasSession)) {
+                // Wait for the network or a session
+                for (Operation operation : operations) {
+                    notifyDeferred(operation);
+                }
+            } else {
+                // Send the whole queue while the radio is awake
+                int i = 0;
+                for (; i < operations.size(); i++) {
+                    if (!send(operations.get(i), accessToken)) {
+                        break;
+                    }
+                }
+                
+                // The rest are held back until the network or session recovers
+                for (i++; i < operations.size(); i++) {
+                    notifyDeferred(operations.get(i));
+                }
+            }
+            
+            // The session may have been refused during the pass
+            scheduleRetry(mStore.getOperations(),
+                    accessToken == null || accessToken.equals(mRejectedToken));
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to read the outbox!", e);
+        } finally {
+            mWakeLock.release();
+        }
+    }
+    
+    /** Get the operations whose next attempt is due, in queue order. */
+    private static List<Operation> getDueOperations(List<Operation> operations) {
+        long now = System.currentTimeMillis();
+        List<Operation> due = new ArrayList<Operation>(operations.size());
+        for (Operation operation : operations) {
+            if (operation.nextAttempt <= now) {
+                due.add(operation);
+            }
+        }
+        return due;
+    }
+    
+    /**
+     * Send a single operation and record the outcome.
+     * 
+     * @return false if the network failed or the session was refused
+     *         and the pass should stop.
+     */
+    private boolean send(Operation operation, String accessToken) {
+        HttpPost request = new HttpPost(ApiUtils.getApiUrl(operation.path));
+        ApiUtils.authorize(request, accessToken);
+        
+        int status;
+        String body;
+        try {
+            StringEntity entity = new StringEntity(operation.data, CHARSET);
+            entity.setContentType(CONTENT_TYPE_JSON);
+            request.setEntity(entity);
+            
+            HttpResponse response = getHttpClient().execute(request);
+            HttpEntity responseEntity = response.getEntity();
+            status = response.getStatusLine().getStatusCode();
+            body = responseEntity != null ? EntityUtils.toString(responseEntity, CHARSET) : null;
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Failed to send %s: %s", operation.path, e));
+            request.abort();
+            defer(operation);
+            return false;
+        }
+        
+        if (status >= 200 && status < 300) {
+            JSONObject json = parseResponse(body);
+            mStore.removeOperation(operation, getCreatedLink(operation, json));
+            notifyDelivered(operation, json);
+        } else if (status == HttpStatus.SC_UNAUTHORIZED) {
+            // The session expired; keep everything until the user signs in again
+            Log.w(TAG, String.format("Session refused for %s: %d", operation.path, status));
+            mRejectedToken = accessToken;
+            notifyDeferred(operation);
+            return false;
+        } else if (status >= 500 || status == HttpStatus.SC_REQUEST_TIMEOUT) {
+            Log.w(TAG, String.format("Failed to send %s: %d", operation.path, status));
+            defer(operation);
+        } else {
+            // The request will never succeed; drop it
+            Log.e(TAG, String.format("Server rejected %s: %d %s", operation.path,
+                    status, body));
+            drop(operation);
+        }
+        return true;
+    }
+    
+    /**
+     * Remove an operation the server will never accept and undo the
+     * change it made to the stored links. The next sync is also allowed
+     * to run at once, so any other difference from the server is
+     * corrected.
+     */
+    private void drop(Operation operation) {
+        mStore.revertOperation(operation.key, operation.token);
+        LinkSync.reset(mContext);
+        notifyFailed(operation);
+    }
+    
+    /** Record a failed attempt and back off, or drop the operation. */
+    private void defer(Operation operation) {
+        int attempts = operation.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            Log.e(TAG, String.format("Giving up on %s after %d attempts.",
+                    operation.path, attempts));
+            drop(operation);
+            return;
+        }
+        
+        long backoff = Math.min(MIN_BACKOFF << (attempts - 1), MAX_BACKOFF);
+        mStore.deferOperation(operation.key, attempts,
+                System.currentTimeMillis() + backoff);
+        notifyDeferred(operation);
+    }
+    
+    /**
+     * Set an alarm for the earliest retry and listen for the network to
+     * return while operations are queued, or stop both if none are.
+     * 
+     * @param operations the operations still queued.
+     * @param waitingForSession true if there is no session to send them
+     *        with. No alarm is set; signing in starts the next pass.
+     */
+    private void scheduleRetry(List<Operation> operations, boolean waitingForSession) {
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_DELIVER);
+        intent.setClass(mContext, OutboxReceiver.class);
+        PendingIntent pi = PendingIntent.getBroadcast(mContext, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        
+        if (operations.isEmpty()) {
+            am.cancel(pi);
+            setReceiverEnabled(false);
+            return;
+        }
+        
+        setReceiverEnabled(true);
+        if (waitingForSession) {
+            am.cancel(pi);
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        long nextAttempt = Long.MAX_VALUE;
+        for (Operation operation : operations) {
+            nextAttempt = Math.min(nextAttempt, operation.nextAttempt);
+        }
+        long delay = Math.max(nextAttempt - now, MIN_BACKOFF);
+        am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay, pi);
+    }
+    
+    /** Enable or disable the {@link OutboxReceiver}. */
+    private void setReceiverEnabled(boolean enabled) {
+        PackageManager pm = mContext.getPackageManager();
+        ComponentName receiver = new ComponentName(mContext, OutboxReceiver.class);
+        int state = enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        if (pm.getComponentEnabledSetting(receiver) != state) {
+            pm.setComponentEnabledSetting(receiver, state, PackageManager.DONT_KILL_APP);
+        }
+    }
+    
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+    
+    private HttpClient getHttpClient() {
+        if (mClient == null) {
+            mClient = HttpUtils.newPooledHttpClient(HTTP_MAX_CONNECTIONS,
+                    HTTP_MAX_CONNECTIONS, HTTP_CONNECT_TIMEOUT, HTTP_SOCKET_TIMEOUT);
+        }
+        return mClient;
+    }
+    
+    /** Parse a response body; an empty object if it is not JSON. */
+    private static JSONObject parseResponse(String body) {
+        if (!TextUtils.isEmpty(body)) {
+            try {
+                return new JSONObject(body);
+            } catch (JSONException e) {
+                // Pass
+            }
+        }
+        return new JSONObject();
+    }
+    
+    /**
+     * Build the link created by a link/create operation so it can be
+     * stored before the next sync.
+     * 
+     * @return the new link or null if the operation did not create one.
+     */
+    private static ShareLink getCreatedLink(Operation operation, JSONObject response) {
+        String token = response.optString("token");
+        if (!PATH_LINK_CREATE.equals(operation.path) || TextUtils.isEmpty(token)) {
+            return null;
+        }
+        
+        // Prefer the server's clock, which the next sync will use too
+        long dateCreated = response.optLong("date_created_ts") * 1000;
+        if (dateCreated <= 0) {
+            dateCreated = System.currentTimeMillis();
+        }
+        
+        String description = parseResponse(operation.data).optString("description");
+        return new ShareLink(token, response.optString("shortlink"), description,
+                response.optString("start_location_name"), dateCreated, true);
+    }
+    
+    private void notifyQueued(final List<Operation> operations) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDeliveryListener listener : new ArrayList<OnDeliveryListener>(mListeners)) {
+                    listener.onQueued(operations);
+                }
+            }
+        });
+    }
+    
+    private void notifyDelivered(final Operation operation, final JSONObject response) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDeliveryListener listener : new ArrayList<OnDeliveryListener>(mListeners)) {
+                    listener.onDelivered(operation, response);
+                }
+            }
+        });
+    }
+    
+    private void notifyDeferred(final Operation operation) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDeliveryListener listener : new ArrayList<OnDeliveryListener>(mListeners)) {
+                    listener.onDeliveryDeferred(operation);
+                }
+            }
+        });
+    }
+    
+    private void notifyFailed(final Operation operation) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDeliveryListener listener : new ArrayList<OnDeliveryListener>(mListeners)) {
+                    listener.onDeliveryFailed(operation);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+package com.geoloqi.geotracks.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.geoloqi.geotracks.model.ShareLink;
+
+/**
+ * <p>An in-memory prefix index over the searchable text of share links;
+ * the description, shortlink and start location name. Each field is
+ * split into lower case words, and a link matches a query when every
+ * word of the query is a prefix of one of the link's words.</p>
+ * 
+ * <p>Links are added and removed one at a time, so the index can be
+ * kept up to date as links are stored rather than rebuilt. This class
+ * is thread-safe.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class LinkSearchIndex {
+    /** Sorts after any character that can appear in a word. */
+    private static final char MAX_CHAR = '\uffff';
+    
+    /** The tokens of the links containing each word, sorted by word. */
+    private final TreeMap<String, Set<String>> mLinksByWord =
+            new TreeMap<String, Set<String>>();
+    
+    /** The words of each indexed link, keyed by link token. */
+    private final Map<String, Set<String>> mWordsByLink =
+            new HashMap<String, Set<String>>();
+    
+    /**
+     * Add a link to the index, replacing any link with the same token.
+     * 
+     * @param link
+     */
+    public synchronized void put(ShareLink link) {
+        Set<String> words = split(link.description, link.shortlink,
+                link.startLocationName);
+        Set<String> old = mWordsByLink.get(link.token);
+        if (words.equals(old)) {
+            return;
+        }
+        
+        remove(link.token);
+        mWordsByLink.put(link.token, words);
+        for (String word : words) {
+            Set<String> links = mLinksByWord.get(word);
+            if (links == null) {
+                links = new HashSet<String>();
+                mLinksByWord.put(word, links);
+            }
+            links.add(link.token);
+        }
+    }
+    
+    /**
+     * Remove a link from the index.
+     * 
+     * @param token the token of the link to remove.
+     */
+    public synchronized void remove(String token) {
+        Set<String> words = mWordsByLink.remove(token);
+        if (words == null) {
+            return;
+        }
+        
+        for (String word : words) {
+            Set<String> links = mLinksByWord.get(word);
+            if (links != null) {
+                links.remove(token);
+                if (links.isEmpty()) {
+                    mLinksByWord.remove(word);
+                }
+            }
+        }
+    }
+    
+    /** Remove every link from the index. */
+    public synchronized void clear() {
+        mLinksByWord.clear();
+        mWordsByLink.clear();
+    }
+    
+    /** Get the number of links in the index. */
+    public synchronized int size() {
+        return mWordsByLink.size();
+    }
+    
+    /**
+     * Find the links matching every word of a query.
+     * 
+     * @param query
+     * @return the tokens of the matching links; null if the query
+     *         contains no words.
+     */
+    public synchronized Set<String> search(CharSequence query) {
+        Set<String> words = split(query != null ? query.toString() : null);
+        if (words.isEmpty()) {
+            return null;
+        }
+        
+        Set<String> result = null;
+        for (String word : words) {
+            // Collect every link with a word starting with this one
+            Set<String> matches = new HashSet<String>();
+            SortedMap<String, Set<String>> range =
+                    mLinksByWord.subMap(word, word + MAX_CHAR);
+            for (Set<String> links : range.values()) {
+                if (result == null) {
+                    matches.addAll(links);
+                } else {
+                    for (String token : links) {
+                        if (result.contains(token)) {
+                            matches.add(token);
+                        }
+                    }
+                }
+            }
+            
+            result = matches;
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Split some text into lower case words of letters and digits.
+     * 
+     * @param fields the text to split; null values are ignored.
+     * @return the distinct words.
+     */
+    static Set<String> split(String... fields) {
+        Set<String> words = new HashSet<String>();
+        StringBuilder word = new StringBuilder();
+        for (String field : fields) {
+            if (field == null) {
+                continue;
+            }
+            
+            int length = field.length();
+            for (int i = 0; i <= length; i++) {
+                char c = i < length ? field.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    word.append(Character.toLowerCase(c));
+                } else if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+        }
+        return words;
+    }
+}
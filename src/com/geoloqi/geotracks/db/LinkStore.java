@@ -0,0 +1,595 @@
+package com.geoloqi.geotracks.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.geoloqi.geotracks.model.ShareLink;
+
+/**
+ * <p>A local SQLite store of the authenticated user's share links. The
+ * link list is drawn from this store, so it can be shown immediately
+ * and while offline, and refreshed from the server in the background.</p>
+ * 
+ * <p>The store keeps a {@link LinkSearchIndex} of its links in memory.
+ * The index is loaded the first time the links are searched and is
+ * then updated as links are written.</p>
+ * 
+ * <p>The store also holds the {@link LinkOutbox}'s queue of changes
+ * waiting to be sent to the server. A link with a queued change is not
+ * overwritten by the server's copy until the change has been sent.</p>
+ * 
+ * <p>All methods perform disk I/O and must not be called from the
+ * main thread.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class LinkStore extends SQLiteOpenHelper {
+    private static final String TAG = "LinkStore";
+    
+    private static final String DATABASE_NAME = "links.db";
+    private static final int DATABASE_VERSION = 1;
+    
+    /** The maximum number of arguments bound to a single query. */
+    private static final int MAX_QUERY_ARGS = 500;
+    
+    public static final String TABLE_LINKS = "links";
+    public static final String TABLE_OUTBOX = "outbox";
+    
+    /**
+     * The columns of the links table. The title column holds the
+     * description or, if there is none, the shortlink. Dates are stored
+     * as timestamps and formatted when displayed.
+     * 
+     * @author Tristan Waddington
+     */
+    public static final class Links implements BaseColumns {
+        public static final String TOKEN = "token";
+        public static final String SHORTLINK = "shortlink";
+        public static final String DESCRIPTION = "description";
+        public static final String START_LOCATION_NAME = "start_location_name";
+        public static final String DATE_CREATED = "date_created";
+        public static final String ACTIVE = "active";
+        public static final String TITLE = "title";
+        
+        /** The default sort order; newest first. */
+        public static final String DEFAULT_SORT_ORDER = DATE_CREATED + " DESC";
+        
+        private Links() {}
+    }
+    
+    /**
+     * The columns of the outbox table. Each row is an API request
+     * waiting to be sent.
+     * 
+     * @author Tristan Waddington
+     */
+    public static final class Outbox implements BaseColumns {
+        public static final String KEY = "key";
+        public static final String PATH = "path";
+        public static final String DATA = "data";
+        public static final String TOKEN = "token";
+        public static final String ATTEMPTS = "attempts";
+        public static final String NEXT_ATTEMPT = "next_attempt";
+        
+        /** The default sort order; oldest first. */
+        public static final String DEFAULT_SORT_ORDER = _ID + " ASC";
+        
+        private Outbox() {}
+    }
+    
+    /** The columns read by {@link ShareLink#fromCursor(Cursor)}. */
+    public static final String[] PROJECTION = new String[] {
+        Links._ID,
+        Links.TOKEN,
+        Links.SHORTLINK,
+        Links.DESCRIPTION,
+        Links.START_LOCATION_NAME,
+        Links.DATE_CREATED,
+        Links.ACTIVE,
+        Links.TITLE
+    };
+    
+    /** The singleton instance of the object. */
+    private static LinkStore sInstance;
+    
+    private final Context mContext;
+    
+    /** The search index; only loaded once it has been needed. */
+    private final LinkSearchIndex mSearchIndex = new LinkSearchIndex();
+    private boolean mSearchIndexLoaded;
+    
+    private LinkStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+    
+    /**
+     * Get a singleton instance of {@link LinkStore}.
+     */
+    public static synchronized LinkStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LinkStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+    
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_LINKS + " ("
+                + Links._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Links.TOKEN + " TEXT NOT NULL UNIQUE, "
+                + Links.SHORTLINK + " TEXT, "
+                + Links.DESCRIPTION + " TEXT, "
+                + Links.START_LOCATION_NAME + " TEXT, "
+                + Links.DATE_CREATED + " INTEGER NOT NULL DEFAULT 0, "
+                + Links.ACTIVE + " INTEGER NOT NULL DEFAULT 0, "
+                + Links.TITLE + " TEXT)");
+        db.execSQL("CREATE INDEX links_date_created ON " + TABLE_LINKS
+                + " (" + Links.DATE_CREATED + ")");
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + Outbox._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Outbox.KEY + " TEXT NOT NULL UNIQUE, "
+                + Outbox.PATH + " TEXT NOT NULL, "
+                + Outbox.DATA + " TEXT NOT NULL, "
+                + Outbox.TOKEN + " TEXT, "
+                + Outbox.ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + Outbox.NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0)");
+    }
+    
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The links are only a cache of the server; rebuild everything
+        // and make the next sync fetch them all
+        LinkSync.reset(mContext);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LINKS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
+        onCreate(db);
+    }
+    
+    /**
+     * Query all stored links in the default sort order. The cursor
+     * is filled before it is returned.
+     * 
+     * @return a cursor over {@link #PROJECTION}.
+     */
+    public Cursor queryLinks() {
+        return queryLinks(null);
+    }
+    
+    /**
+     * Query the stored links matching a search in the default sort
+     * order. A link matches when every word of the query starts one of
+     * the words of its description, shortlink or start location name.
+     * The cursor is filled before it is returned.
+     * 
+     * @param query the search; all links are returned if this is empty.
+     * @return a cursor over {@link #PROJECTION}.
+     */
+    public Cursor queryLinks(CharSequence query) {
+        String selection = null;
+        if (!TextUtils.isEmpty(query)) {
+            Set<String> tokens = getSearchIndex().search(query);
+            if (tokens != null) {
+                selection = buildTokenSelection(tokens);
+            }
+        }
+        
+        Cursor cursor = getReadableDatabase().query(TABLE_LINKS, PROJECTION,
+                selection, null, null, null, Links.DEFAULT_SORT_ORDER);
+        
+        // Fill the cursor window now rather than on the main thread
+        cursor.getCount();
+        return cursor;
+    }
+    
+    /**
+     * Store a page of links, writing only the links that are new or
+     * have changed. Stored links that are not in the page are kept, as
+     * are links with a change waiting in the outbox.
+     * 
+     * @param links
+     * @return the number of rows written.
+     */
+    public int putLinks(List<ShareLink> links) {
+        if (links.isEmpty()) {
+            return 0;
+        }
+        
+        SQLiteDatabase db = getWritableDatabase();
+        int changes = 0;
+        
+        db.beginTransaction();
+        try {
+            Map<String, ShareLink> stored = getLinksByToken(db, links);
+            Set<String> pending = getQueuedTokens(db);
+            for (ShareLink link : links) {
+                ShareLink old = stored.get(link.token);
+                if (pending.contains(link.token)) {
+                    // Our local change is newer than the server's copy
+                    continue;
+                } else if (old == null) {
+                    db.insert(TABLE_LINKS, null, toContentValues(link));
+                    changes++;
+                } else if (!old.equals(link)) {
+                    db.update(TABLE_LINKS, toContentValues(link),
+                            Links.TOKEN + " = ?", new String[] { link.token });
+                    changes++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        synchronized (mSearchIndex) {
+            if (mSearchIndexLoaded) {
+                for (ShareLink link : links) {
+                    mSearchIndex.put(link);
+                }
+            }
+        }
+        return changes;
+    }
+    
+    /**
+     * Remove every stored link whose token is not in the given set.
+     * Links with a change in the outbox, such as placeholders for links
+     * being created, are kept. Call this once a complete list of links
+     * has been stored.
+     * 
+     * @param tokens the tokens of the links to keep.
+     * @return the number of rows removed.
+     */
+    public int retainLinks(Set<String> tokens) {
+        SQLiteDatabase db = getWritableDatabase();
+        List<String> removed = new ArrayList<String>();
+        int changes = 0;
+        
+        db.beginTransaction();
+        try {
+            Set<String> queued = getQueuedTokens(db);
+            Cursor cursor = db.query(TABLE_LINKS, new String[] { Links.TOKEN },
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String token = cursor.getString(0);
+                    if (!tokens.contains(token) && !queued.contains(token)) {
+                        changes += db.delete(TABLE_LINKS, Links.TOKEN + " = ?",
+                                new String[] { token });
+                        removed.add(token);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        synchronized (mSearchIndex) {
+            if (mSearchIndexLoaded) {
+                for (String token : removed) {
+                    mSearchIndex.remove(token);
+                }
+            }
+        }
+        
+        Log.d(TAG, String.format("Kept %d links, removed %d.", tokens.size(), changes));
+        return changes;
+    }
+    
+    /**
+     * Store a single link, replacing any stored link with the same token.
+     * 
+     * @param link
+     */
+    public void putLink(ShareLink link) {
+        writeLink(getWritableDatabase(), link);
+        indexLink(link);
+    }
+    
+    /**
+     * Add operations to the outbox and, in the same transaction, store
+     * the changes they make to links so they are shown right away.
+     * 
+     * @param operations
+     * @param links the changed links; may be empty.
+     */
+    public void queueOperations(List<LinkOutbox.Operation> operations,
+            List<ShareLink> links) {
+        SQLiteDatabase db = getWritableDatabase();
+        
+        db.beginTransaction();
+        try {
+            for (ShareLink link : links) {
+                writeLink(db, link);
+            }
+            
+            for (LinkOutbox.Operation operation : operations) {
+                ContentValues values = new ContentValues();
+                values.put(Outbox.KEY, operation.key);
+                values.put(Outbox.PATH, operation.path);
+                values.put(Outbox.DATA, operation.data);
+                values.put(Outbox.TOKEN, operation.token);
+                values.put(Outbox.ATTEMPTS, operation.attempts);
+                values.put(Outbox.NEXT_ATTEMPT, operation.nextAttempt);
+                db.insertOrThrow(TABLE_OUTBOX, null, values);
+            }
+            
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        for (ShareLink link : links) {
+            indexLink(link);
+        }
+    }
+    
+    /**
+     * Get every operation in the outbox, oldest first.
+     * 
+     * @return a new list of operations.
+     */
+    public List<LinkOutbox.Operation> getOperations() {
+        List<LinkOutbox.Operation> operations = new ArrayList<LinkOutbox.Operation>();
+        Cursor cursor = getReadableDatabase().query(TABLE_OUTBOX,
+                new String[] { Outbox.KEY, Outbox.PATH, Outbox.DATA, Outbox.TOKEN,
+                        Outbox.ATTEMPTS, Outbox.NEXT_ATTEMPT },
+                null, null, null, null, Outbox.DEFAULT_SORT_ORDER);
+        try {
+            while (cursor.moveToNext()) {
+                operations.add(new LinkOutbox.Operation(cursor.getString(0),
+                        cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                        cursor.getInt(4), cursor.getLong(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return operations;
+    }
+    
+    /**
+     * Record a failed attempt to send an operation.
+     * 
+     * @param key the key of the operation.
+     * @param attempts the number of attempts made so far.
+     * @param nextAttempt the earliest time to try again in milliseconds.
+     */
+    public void deferOperation(String key, int attempts, long nextAttempt) {
+        ContentValues values = new ContentValues();
+        values.put(Outbox.ATTEMPTS, attempts);
+        values.put(Outbox.NEXT_ATTEMPT, nextAttempt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, Outbox.KEY + " = ?",
+                new String[] { key });
+    }
+    
+    /**
+     * Replace the body of a queued operation and when it is next sent.
+     * Does nothing if the operation is no longer queued.
+     * 
+     * @param key the key of the operation.
+     * @param data the new body of the request.
+     * @param nextAttempt the earliest time to send it in milliseconds.
+     */
+    public void updateOperation(String key, String data, long nextAttempt) {
+        ContentValues values = new ContentValues();
+        values.put(Outbox.DATA, data);
+        values.put(Outbox.NEXT_ATTEMPT, nextAttempt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, Outbox.KEY + " = ?",
+                new String[] { key });
+    }
+    
+    /**
+     * Remove a sent operation from the outbox, optionally storing the
+     * link returned by the server in the same transaction. The
+     * placeholder stored for a link/create operation is removed.
+     * 
+     * @param operation
+     * @param link the link to store or null.
+     */
+    public void removeOperation(LinkOutbox.Operation operation, ShareLink link) {
+        SQLiteDatabase db = getWritableDatabase();
+        boolean pending = ShareLink.isPendingToken(operation.token);
+        
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_OUTBOX, Outbox.KEY + " = ?", new String[] { operation.key });
+            if (pending) {
+                db.delete(TABLE_LINKS, Links.TOKEN + " = ?", new String[] { operation.token });
+            }
+            if (link != null) {
+                writeLink(db, link);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        if (pending) {
+            unindexLink(operation.token);
+        }
+        if (link != null) {
+            indexLink(link);
+        }
+    }
+    
+    /**
+     * Remove an operation that will never be sent and undo its change
+     * to the stored links. The placeholder of a link that was never
+     * created is removed. An expired link is marked active again unless
+     * another change to it is still queued.
+     * 
+     * @param key the key of the operation.
+     * @param token the token of the changed link or null.
+     */
+    public void revertOperation(String key, String token) {
+        SQLiteDatabase db = getWritableDatabase();
+        boolean pending = ShareLink.isPendingToken(token);
+        
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_OUTBOX, Outbox.KEY + " = ?", new String[] { key });
+            if (pending) {
+                db.delete(TABLE_LINKS, Links.TOKEN + " = ?", new String[] { token });
+            } else if (token != null && !getQueuedTokens(db).contains(token)) {
+                ContentValues values = new ContentValues();
+                values.put(Links.ACTIVE, 1);
+                db.update(TABLE_LINKS, values, Links.TOKEN + " = ?",
+                        new String[] { token });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        if (pending) {
+            unindexLink(token);
+        }
+    }
+    
+    /** Write a link, updating it in place so the row keeps its id. */
+    private static void writeLink(SQLiteDatabase db, ShareLink link) {
+        ContentValues values = toContentValues(link);
+        int rows = db.update(TABLE_LINKS, values, Links.TOKEN + " = ?",
+                new String[] { link.token });
+        if (rows == 0) {
+            db.insert(TABLE_LINKS, null, values);
+        }
+    }
+    
+    /** Update the search index after a link has been written. */
+    private void indexLink(ShareLink link) {
+        synchronized (mSearchIndex) {
+            if (mSearchIndexLoaded) {
+                mSearchIndex.put(link);
+            }
+        }
+    }
+    
+    /** Update the search index after a link has been deleted. */
+    private void unindexLink(String token) {
+        synchronized (mSearchIndex) {
+            if (mSearchIndexLoaded) {
+                mSearchIndex.remove(token);
+            }
+        }
+    }
+    
+    /** Get the tokens of the links with a change in the outbox. */
+    private static Set<String> getQueuedTokens(SQLiteDatabase db) {
+        Set<String> tokens = new HashSet<String>();
+        Cursor cursor = db.query(true, TABLE_OUTBOX, new String[] { Outbox.TOKEN },
+                Outbox.TOKEN + " IS NOT NULL", null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                tokens.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tokens;
+    }
+    
+    /**
+     * Get the search index, loading every stored link into it the
+     * first time. Writes made while the index is loading wait for it
+     * and are applied afterwards, so no change is missed.
+     */
+    private LinkSearchIndex getSearchIndex() {
+        synchronized (mSearchIndex) {
+            if (!mSearchIndexLoaded) {
+                Cursor cursor = getReadableDatabase().query(TABLE_LINKS,
+                        PROJECTION, null, null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        mSearchIndex.put(ShareLink.fromCursor(cursor));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                mSearchIndexLoaded = true;
+                
+                Log.d(TAG, String.format("Indexed %d links.", mSearchIndex.size()));
+            }
+        }
+        return mSearchIndex;
+    }
+    
+    /** Build a selection matching only the links with the given tokens. */
+    private static String buildTokenSelection(Set<String> tokens) {
+        if (tokens.isEmpty()) {
+            return "0";
+        }
+        
+        // The tokens are escaped rather than bound, so any number of
+        // them fit in a single query.
+        StringBuilder selection = new StringBuilder(Links.TOKEN).append(" IN (");
+        boolean first = true;
+        for (String token : tokens) {
+            if (!first) {
+                selection.append(", ");
+            }
+            DatabaseUtils.appendEscapedSQLString(selection, token);
+            first = false;
+        }
+        return selection.append(')').toString();
+    }
+    
+    /** Read the stored copies of the given links keyed by token. */
+    private static Map<String, ShareLink> getLinksByToken(SQLiteDatabase db,
+            List<ShareLink> links) {
+        Map<String, ShareLink> stored = new HashMap<String, ShareLink>();
+        
+        // Stay well within the SQLite limit on bound parameters
+        for (int start = 0; start < links.size(); start += MAX_QUERY_ARGS) {
+            int end = Math.min(start + MAX_QUERY_ARGS, links.size());
+            String[] tokens = new String[end - start];
+            StringBuilder selection = new StringBuilder(Links.TOKEN).append(" IN (");
+            for (int i = start; i < end; i++) {
+                tokens[i - start] = links.get(i).token;
+                selection.append(i > start ? ", ?" : "?");
+            }
+            selection.append(')');
+            
+            Cursor cursor = db.query(TABLE_LINKS, PROJECTION,
+                    selection.toString(), tokens, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ShareLink link = ShareLink.fromCursor(cursor);
+                    stored.put(link.token, link);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return stored;
+    }
+    
+    private static ContentValues toContentValues(ShareLink link) {
+        ContentValues values = new ContentValues();
+        values.put(Links.TOKEN, link.token);
+        values.put(Links.SHORTLINK, link.shortlink);
+        values.put(Links.DESCRIPTION, link.description);
+        values.put(Links.START_LOCATION_NAME, link.startLocationName);
+        values.put(Links.DATE_CREATED, link.dateCreated);
+        values.put(Links.ACTIVE, link.active ? 1 : 0);
+        values.put(Links.TITLE, link.title);
+        return values;
+    }
+}
@@ -0,0 +1,548 @@
+package com.geoloqi.geotracks.db;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHeader;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.util.Log;
+
+import com.geoloqi.android.sdk.LQException;
+import com.geoloqi.android.sdk.LQSession;
+import com.geoloqi.android.sdk.LQSession.OnRunApiRequestListener;
+import com.geoloqi.geotracks.model.ShareLink;
+import com.geoloqi.geotracks.model.ShareLinkParser;
+import com.geoloqi.geotracks.utils.ApiUtils;
+import com.geoloqi.geotracks.utils.HttpUtils;
+
+/**
+ * <p>Synchronizes the {@link LinkStore} with the server's list of share
+ * links, one page at a time. Each page is written to the store as soon
+ * as it arrives, and only links that are new or changed are written,
+ * so the list can update while the rest of the pages download. Links
+ * that the server no longer returns are removed once every page has
+ * been stored.</p>
+ * 
+ * <p>The API only pages by offset, so a link created or deleted on the
+ * server during a sync shifts the rows between pages. Each page after
+ * the first starts one row early and must begin with the last link of
+ * the page before it. If it does not, the pages may have skipped a
+ * link. In that case no links are removed, and the sync is not counted
+ * as fresh, so the next one runs in full.</p>
+ * 
+ * <p>When the whole list fit in a single page, the next sync makes a
+ * conditional request with the ETag of that page and stops early if
+ * the server answers 304 Not Modified.</p>
+ * 
+ * <p>On Honeycomb and later each page is streamed straight from the
+ * response body into {@link ShareLink} objects by
+ * {@link ShareLinkParser}, so no JSON tree of the page is built.
+ * Earlier releases request pages through the {@link LQSession}.</p>
+ * 
+ * <p>A sync that is not forced is skipped while the last successful
+ * sync is younger than {@link #FRESHNESS_TTL}, and a sync requested
+ * while another is running joins it rather than starting a second
+ * one. An instance can be kept across configuration changes by
+ * moving it to the new listener with {@link #setListener}.</p>
+ * 
+ * <p>This class must only be used from the main thread.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class LinkSync {
+    private static final String TAG = "LinkSync";
+    
+    /** The number of links requested per page. */
+    public static final int PAGE_SIZE = 100;
+    
+    /** How long the stored links are considered fresh in milliseconds. */
+    public static final long FRESHNESS_TTL = 5 * 60 * 1000;
+    
+    private static final String PATH_LINK_LIST = "link/list";
+    private static final String PARAM_COUNT = "count";
+    private static final String PARAM_OFFSET = "offset";
+    
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    
+    private static final String PREFERENCES_NAME = "link_sync";
+    private static final String PREF_ETAG = "etag";
+    private static final String PREF_LAST_SYNC = "last_sync";
+    
+    private static final int HTTP_MAX_CONNECTIONS = 1;
+    private static final int HTTP_CONNECT_TIMEOUT = 15 * 1000;
+    private static final int HTTP_SOCKET_TIMEOUT = 30 * 1000;
+    
+    /** The client used to stream pages; created when first needed. */
+    private static HttpClient sClient;
+    
+    /**
+     * Receives the progress of a sync on the main thread.
+     * 
+     * @author Tristan Waddington
+     */
+    public interface OnSyncListener {
+        /** Called each time the sync changes the stored links. */
+        public void onLinksChanged();
+        
+        /**
+         * Called once when the sync has finished.
+         * 
+         * @param success false if a page could not be loaded or stored.
+         */
+        public void onSyncFinished(boolean success);
+    }
+    
+    private final LinkStore mStore;
+    private final SharedPreferences mPreferences;
+    private OnSyncListener mListener;
+    
+    /** The tokens of every link returned by the server so far. */
+    private final Set<String> mTokens = new HashSet<String>();
+    
+    /**
+     * The token of the last link of the previous page, or null on the
+     * first page. Guarded by {@link #mTokens}.
+     */
+    private String mLastToken;
+    
+    /**
+     * False once the page boundaries show the list changed during the
+     * sync. Guarded by {@link #mTokens}.
+     */
+    private boolean mConsistent;
+    
+    /** Incremented by each sync so stale callbacks can be ignored. */
+    private int mGeneration;
+    
+    private boolean mRunning;
+    private int mOffset;
+    private int mPageCount;
+    private String mEtag;
+    
+    public LinkSync(Context context, OnSyncListener listener) {
+        mStore = LinkStore.getInstance(context);
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+        mListener = listener;
+    }
+    
+    /**
+     * Set the listener that receives the progress of the sync.
+     * 
+     * @param listener the new listener or null for none.
+     */
+    public void setListener(OnSyncListener listener) {
+        mListener = listener;
+    }
+    
+    /** Returns true if a sync is in progress. */
+    public boolean isRunning() {
+        return mRunning;
+    }
+    
+    /**
+     * Returns true if the last successful sync finished less than
+     * {@link #FRESHNESS_TTL} ago.
+     */
+    public boolean isFresh() {
+        long age = System.currentTimeMillis() - mPreferences.getLong(PREF_LAST_SYNC, 0);
+        return age >= 0 && age < FRESHNESS_TTL;
+    }
+    
+    /**
+     * Forget the ETag and time of the last sync, so the next sync
+     * downloads every link. Called when the stored links are dropped.
+     */
+    static void reset(Context context) {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+    
+    /**
+     * Start a sync. Nothing is done if a sync is already running, or
+     * if the sync is not forced and the stored links are still fresh.
+     * 
+     * @param session
+     * @param force true to sync even if the stored links are fresh.
+     * @return true if a sync is now running.
+     */
+    public boolean start(LQSession session, boolean force) {
+        if (mRunning) {
+            return true;
+        }
+        if (!force && isFresh()) {
+            Log.d(TAG, "The stored links are still fresh.");
+            return false;
+        }
+        
+        mRunning = true;
+        mGeneration++;
+        synchronized (mTokens) {
+            mTokens.clear();
+            mLastToken = null;
+            mConsistent = true;
+        }
+        mOffset = 0;
+        mPageCount = 0;
+        mEtag = null;
+        requestPage(session, mGeneration);
+        return true;
+    }
+    
+    /**
+     * Stop the running sync. Pages already stored are kept, but no
+     * links are removed and the listener is not called again.
+     */
+    public void cancel() {
+        mRunning = false;
+        mGeneration++;
+    }
+    
+    private void requestPage(final LQSession session, final int generation) {
+        final boolean firstPage = mOffset == 0;
+        String etag = firstPage ? mPreferences.getString(PREF_ETAG, null) : null;
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && session.getAccessToken() != null) {
+            // Keep the network wait off the serial executor, where it
+            // would hold up every task that reads the stored links
+            new FetchPageTask(session, generation, firstPage).executeOnExecutor(
+                    AsyncTask.THREAD_POOL_EXECUTOR, buildPageUrl(), etag);
+            return;
+        }
+        
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(PARAM_COUNT, String.valueOf(PAGE_SIZE));
+        params.put(PARAM_OFFSET, String.valueOf(getPageOffset()));
+        
+        Header[] headers = new Header[0];
+        if (etag != null) {
+            headers = new Header[] { new BasicHeader(HEADER_IF_NONE_MATCH, etag) };
+        }
+        
+        session.runGetRequest(PATH_LINK_LIST, params, headers,
+                new OnRunApiRequestListener() {
+            @Override
+            public void onSuccess(LQSession session, JSONObject json,
+                    Header[] headers) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                if (firstPage) {
+                    mEtag = getHeaderValue(headers, HEADER_ETAG);
+                }
+                new StorePageTask(session, generation).execute(json);
+            }
+            @Override
+            public void onFailure(LQSession session, LQException e) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                Log.e(TAG, "Failed to load the list of links!", e);
+                finish(false);
+            }
+            @Override
+            public void onComplete(LQSession session, JSONObject json,
+                    Header[] headers, StatusLine status) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                if (firstPage && status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    // Nothing has changed since the last sync
+                    Log.d(TAG, "The list of links has not changed.");
+                    finish(true);
+                } else {
+                    Log.e(TAG, String.format("Failed to load the list of links: %s", status));
+                    finish(false);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Get the offset of the next page. Pages after the first overlap
+     * the previous page by one link.
+     */
+    private int getPageOffset() {
+        return mOffset > 0 ? mOffset - 1 : 0;
+    }
+    
+    /** Build the URL of the next page to request. */
+    private String buildPageUrl() {
+        return String.format("%s?%s=%d&%s=%d", ApiUtils.getApiUrl(PATH_LINK_LIST),
+                PARAM_COUNT, PAGE_SIZE, PARAM_OFFSET, getPageOffset());
+    }
+    
+    /**
+     * Apply a stored page to the state of the sync, then finish or
+     * request the next page. Must be called on the main thread.
+     */
+    private void onPageResult(PageResult result, LQSession session, int generation) {
+        mPageCount++;
+        if (result.changes > 0 && mListener != null) {
+            mListener.onLinksChanged();
+        }
+        
+        if (result.failed) {
+            finish(false);
+        } else if (result.complete) {
+            // Only a list that fits in one page can be revalidated
+            SharedPreferences.Editor editor = mPreferences.edit();
+            if (mPageCount == 1 && mEtag != null) {
+                editor.putString(PREF_ETAG, mEtag);
+            } else {
+                editor.remove(PREF_ETAG);
+            }
+            editor.commit();
+            
+            boolean consistent;
+            synchronized (mTokens) {
+                consistent = mConsistent;
+            }
+            finish(true, consistent);
+        } else {
+            mOffset = getPageOffset() + result.size;
+            requestPage(session, generation);
+        }
+    }
+    
+    private void finish(boolean success) {
+        finish(success, success);
+    }
+    
+    /**
+     * @param success passed on to the listener.
+     * @param fresh true to skip syncs until {@link #FRESHNESS_TTL} passes.
+     */
+    private void finish(boolean success, boolean fresh) {
+        mRunning = false;
+        mGeneration++;
+        if (fresh) {
+            mPreferences.edit().putLong(PREF_LAST_SYNC,
+                    System.currentTimeMillis()).commit();
+        }
+        if (mListener != null) {
+            mListener.onSyncFinished(success);
+        }
+    }
+    
+    /** Get the value of the first header with the given name or null. */
+    private static String getHeaderValue(Header[] headers, String name) {
+        if (headers != null) {
+            for (Header header : headers) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+    
+    /** The outcome of storing a single page. */
+    private static class PageResult {
+        public int size;
+        public int changes;
+        public boolean complete;
+        public boolean failed;
+        public boolean notModified;
+        public String etag;
+    }
+    
+    /** Get the shared client used to stream pages. */
+    private static synchronized HttpClient getHttpClient() {
+        if (sClient == null) {
+            sClient = HttpUtils.newPooledHttpClient(HTTP_MAX_CONNECTIONS,
+                    HTTP_MAX_CONNECTIONS, HTTP_CONNECT_TIMEOUT, HTTP_SOCKET_TIMEOUT);
+        }
+        return sClient;
+    }
+    
+    /**
+     * Apply a page of links to the {@link LinkStore}. Must be called on
+     * a background thread.
+     * 
+     * @param links
+     * @param result the result to fill in.
+     */
+    private void storePage(List<ShareLink> links, PageResult result) {
+        result.size = links.size();
+        
+        int newTokens = 0;
+        synchronized (mTokens) {
+            if (mLastToken != null && (links.isEmpty()
+                    || !mLastToken.equals(links.get(0).token))) {
+                // A link was created or deleted above this page
+                Log.w(TAG, "The list of links changed during the sync.");
+                mConsistent = false;
+            }
+            if (!links.isEmpty()) {
+                mLastToken = links.get(links.size() - 1).token;
+            }
+            for (ShareLink link : links) {
+                if (mTokens.add(link.token)) {
+                    newTokens++;
+                }
+            }
+        }
+        result.changes = mStore.putLinks(links);
+        
+        if (links.size() > PAGE_SIZE) {
+            // The server ignored our page size and sent everything
+            result.complete = true;
+        } else if (links.size() > 1 && newTokens == 0) {
+            // The server ignored our offset. We can't tell which
+            // links were removed, so don't remove any.
+            Log.w(TAG, "The server does not support paging!");
+            result.complete = true;
+            return;
+        } else {
+            result.complete = links.size() < PAGE_SIZE;
+        }
+        
+        if (result.complete) {
+            synchronized (mTokens) {
+                if (mConsistent) {
+                    result.changes += mStore.retainLinks(mTokens);
+                } else {
+                    // A live link may have been skipped; keep them all
+                    Log.w(TAG, "Not removing links after an inconsistent sync.");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Parse a page of links and apply it to the {@link LinkStore} on a
+     * background thread, then request the next page if there is one.
+     */
+    private class StorePageTask extends AsyncTask<JSONObject, Void, PageResult> {
+        private final LQSession mSession;
+        private final int mTaskGeneration;
+        
+        public StorePageTask(LQSession session, int generation) {
+            mSession = session;
+            mTaskGeneration = generation;
+        }
+        
+        @Override
+        protected PageResult doInBackground(JSONObject... params) {
+            PageResult result = new PageResult();
+            try {
+                storePage(ShareLink.fromJsonArray(
+                        params[0].getJSONArray("links")), result);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to parse the list of links!", e);
+                result.failed = true;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to store the list of links!", e);
+                result.failed = true;
+            }
+            return result;
+        }
+        
+        @Override
+        protected void onPostExecute(PageResult result) {
+            if (mTaskGeneration == mGeneration) {
+                onPageResult(result, mSession, mTaskGeneration);
+            }
+        }
+    }
+    
+    /**
+     * Request a page of links, stream it into the {@link LinkStore} on a
+     * background thread, then request the next page if there is one.
+     * Takes the page URL and the ETag to revalidate against, which may
+     * be null.
+     */
+    private class FetchPageTask extends AsyncTask<String, Void, PageResult> {
+        private final LQSession mSession;
+        private final int mTaskGeneration;
+        private final boolean mFirstPage;
+        private final String mAccessToken;
+        
+        public FetchPageTask(LQSession session, int generation, boolean firstPage) {
+            mSession = session;
+            mTaskGeneration = generation;
+            mFirstPage = firstPage;
+            mAccessToken = session.getAccessToken();
+        }
+        
+        @Override
+        protected PageResult doInBackground(String... params) {
+            PageResult result = new PageResult();
+            
+            HttpGet request = new HttpGet(params[0]);
+            ApiUtils.authorize(request, mAccessToken);
+            if (params[1] != null) {
+                request.addHeader(HEADER_IF_NONE_MATCH, params[1]);
+            }
+            
+            try {
+                HttpResponse response = getHttpClient().execute(request);
+                HttpEntity entity = response.getEntity();
+                StatusLine status = response.getStatusLine();
+                
+                if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    result.notModified = true;
+                } else if (status.getStatusCode() != HttpStatus.SC_OK || entity == null) {
+                    Log.e(TAG, String.format("Failed to load the list of links: %s", status));
+                    result.failed = true;
+                } else {
+                    result.etag = getHeaderValue(response.getAllHeaders(), HEADER_ETAG);
+                    storePage(ShareLinkParser.parseLinkList(entity.getContent()), result);
+                }
+                
+                // Return the connection to the pool
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load the list of links!", e);
+                request.abort();
+                result.failed = true;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to store the list of links!", e);
+                request.abort();
+                result.failed = true;
+            }
+            return result;
+        }
+        
+        @Override
+        protected void onPostExecute(PageResult result) {
+            if (mTaskGeneration != mGeneration) {
+                return;
+            }
+            
+            if (result.notModified) {
+                // Nothing has changed since the last sync
+                Log.d(TAG, "The list of links has not changed.");
+                finish(true);
+                return;
+            }
+            if (mFirstPage) {
+                mEtag = result.etag;
+            }
+            onPageResult(result, mSession, mTaskGeneration);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.geoloqi.geotracks.location;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>Keeps the best location fix seen by the application in memory. Fixes
+ * arrive from the tracker through the location receivers, and the last
+ * known fixes of the GPS, network and passive providers are read as a
+ * fallback. None of this turns on a radio.</p>
+ * 
+ * <p>Fixes are compared by their estimated error now; the reported
+ * accuracy grows by {@link #DRIFT_SPEED} for every second since the fix
+ * was taken, so a fresh network fix beats a GPS fix from hours ago.</p>
+ * 
+ * <p>When the cached fix is not good enough, {@link #requestFix} asks
+ * the GPS and network providers for a new one and answers with the best
+ * fix available once it is accurate enough or a deadline passes.</p>
+ * 
+ * <p>This class is thread-safe.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class BestLocationProvider {
+    /**
+     * How fast the error of a fix grows with its age, in meters per
+     * second; roughly walking speed.
+     */
+    public static final float DRIFT_SPEED = 1.5f;
+    
+    /** The error assumed for a fix without an accuracy, in meters. */
+    private static final float UNKNOWN_ACCURACY = 1000;
+    
+    /** How often the providers' last known fixes are read, in milliseconds. */
+    private static final long PROVIDER_CHECK_INTERVAL = 60 * 1000;
+    
+    private static final String[] PROVIDERS = new String[] {
+        LocationManager.GPS_PROVIDER,
+        LocationManager.NETWORK_PROVIDER,
+        LocationManager.PASSIVE_PROVIDER
+    };
+    
+    /** The providers asked for new fixes by {@link #requestFix}. */
+    private static final String[] ACTIVE_PROVIDERS = new String[] {
+        LocationManager.GPS_PROVIDER,
+        LocationManager.NETWORK_PROVIDER
+    };
+    
+    /** The singleton instance of the object. */
+    private static BestLocationProvider sInstance;
+    
+    private final LocationManager mLocationManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    
+    private Location mBestLocation;
+    private long mLastProviderCheck;
+    
+    private BestLocationProvider(Context context) {
+        mLocationManager = (LocationManager) context.getApplicationContext()
+                .getSystemService(Context.LOCATION_SERVICE);
+    }
+    
+    /**
+     * Get a singleton instance of {@link BestLocationProvider}.
+     */
+    public static synchronized BestLocationProvider getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BestLocationProvider(context);
+        }
+        return sInstance;
+    }
+    
+    /**
+     * Offer a new fix. It replaces the cached fix if its estimated
+     * error is lower.
+     * 
+     * @param location
+     * @return true if the fix is now the best known fix.
+     */
+    public synchronized boolean offer(Location location) {
+        if (location == null) {
+            return false;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (mBestLocation == null || getError(location, now) < getError(mBestLocation, now)) {
+            mBestLocation = new Location(location);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Get the best known fix. The providers' last known fixes are
+     * checked at most once every {@link #PROVIDER_CHECK_INTERVAL}.
+     * 
+     * @return a copy of the best fix; null if there is none.
+     */
+    public synchronized Location getBestLocation() {
+        long now = System.currentTimeMillis();
+        if (mBestLocation == null || now - mLastProviderCheck > PROVIDER_CHECK_INTERVAL) {
+            mLastProviderCheck = now;
+            for (String provider : PROVIDERS) {
+                try {
+                    offer(mLocationManager.getLastKnownLocation(provider));
+                } catch (IllegalArgumentException e) {
+                    // The provider does not exist on this device
+                } catch (SecurityException e) {
+                    // We are not allowed to use the provider
+                }
+            }
+        }
+        return mBestLocation != null ? new Location(mBestLocation) : null;
+    }
+    
+    /**
+     * Get a fix with an estimated error of at most the given accuracy.
+     * The cached fix is used when it is good enough; otherwise new fixes
+     * are requested until one is, or until the timeout passes. The
+     * listener is called once on the main thread with the best fix
+     * known at that point, which may still be less accurate or null.
+     * 
+     * @param accuracy the error wanted, in meters.
+     * @param timeout the longest to wait, in milliseconds.
+     * @param listener
+     * @return the request, which can be cancelled.
+     */
+    public FixRequest requestFix(float accuracy, long timeout, OnFixListener listener) {
+        FixRequest request = new FixRequest(accuracy, listener);
+        if (request.isSatisfied()) {
+            mHandler.post(request);
+            return request;
+        }
+        
+        boolean requested = false;
+        for (String provider : ACTIVE_PROVIDERS) {
+            try {
+                if (mLocationManager.isProviderEnabled(provider)) {
+                    mLocationManager.requestLocationUpdates(provider, 0, 0, request,
+                            Looper.getMainLooper());
+                    requested = true;
+                }
+            } catch (IllegalArgumentException e) {
+                // The provider does not exist on this device
+            } catch (SecurityException e) {
+                // We are not allowed to use the provider
+            }
+        }
+        
+        // Without a provider to wait on, answer with what we have
+        mHandler.postDelayed(request, requested ? timeout : 0);
+        return request;
+    }
+    
+    /**
+     * Estimate the error of a fix at the given time.
+     * 
+     * @param location
+     * @param now the current time in milliseconds.
+     * @return the estimated error in meters.
+     */
+    public static float getError(Location location, long now) {
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : UNKNOWN_ACCURACY;
+        long age = Math.max(0, now - location.getTime());
+        return accuracy + DRIFT_SPEED * age / 1000f;
+    }
+    
+    /**
+     * Receives the result of {@link BestLocationProvider#requestFix}.
+     */
+    public interface OnFixListener {
+        /**
+         * @param location the best fix known when the request finished;
+         *         null if there is none.
+         */
+        public void onFix(Location location);
+    }
+    
+    /**
+     * A pending {@link BestLocationProvider#requestFix} call. It listens
+     * for new fixes and runs when its deadline passes.
+     */
+    public class FixRequest implements LocationListener, Runnable {
+        private final float mAccuracy;
+        private OnFixListener mListener;
+        
+        private FixRequest(float accuracy, OnFixListener listener) {
+            mAccuracy = accuracy;
+            mListener = listener;
+        }
+        
+        /**
+         * Stop waiting for a fix. The listener will not be called. Must
+         * be called from the main thread.
+         */
+        public void cancel() {
+            mListener = null;
+            stop();
+        }
+        
+        @Override
+        public void run() {
+            // The fix is good enough or the deadline passed
+            finish();
+        }
+        
+        @Override
+        public void onLocationChanged(Location location) {
+            offer(location);
+            if (isSatisfied()) {
+                finish();
+            }
+        }
+        
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            // Pass
+        }
+        
+        @Override
+        public void onProviderEnabled(String provider) {
+            // Pass
+        }
+        
+        @Override
+        public void onProviderDisabled(String provider) {
+            // Pass
+        }
+        
+        private boolean isSatisfied() {
+            Location best = getBestLocation();
+            return best != null && getError(best, System.currentTimeMillis()) <= mAccuracy;
+        }
+        
+        private void finish() {
+            OnFixListener listener = mListener;
+            if (listener == null) {
+                return;
+            }
+            mListener = null;
+            stop();
+            listener.onFix(getBestLocation());
+        }
+        
+        private void stop() {
+            mLocationManager.removeUpdates(this);
+            mHandler.removeCallbacks(this);
+        }
+    }
+}
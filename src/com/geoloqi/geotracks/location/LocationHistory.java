@@ -0,0 +1,174 @@
+package com.geoloqi.geotracks.location;
+
+import android.location.Location;
+
+/**
+ * <p>A fixed-size ring buffer of the most recent location fixes. Each
+ * fix is stored as primitives in parallel arrays, so recording a fix
+ * allocates nothing and readers never see {@link Location} objects.</p>
+ * 
+ * <p>Writers are serialized with a lock. Readers take no lock; they
+ * copy the fixes into a {@link Snapshot} and discard any that were
+ * overwritten while they were copying. The fixes are drawn by the
+ * map's track overlay on every frame.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class LocationHistory {
+    /** The number of fixes kept. */
+    public static final int CAPACITY = 256;
+    
+    /** The singleton instance of the object. */
+    private static final LocationHistory sInstance = new LocationHistory(CAPACITY);
+    
+    private final int mCapacity;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final long[] mTimes;
+    private final float[] mAccuracies;
+    private final float[] mSpeeds;
+    
+    /** The number of fixes a writer has started to record. */
+    private volatile long mStarted;
+    
+    /** The number of fixes recorded completely. */
+    private volatile long mFinished;
+    
+    /**
+     * Only used to order memory accesses. A plain access cannot move
+     * above a volatile read or below a volatile write, so the writer
+     * reads this after announcing a slot and readers write it after
+     * copying. Without it a reader could copy a half-written slot and
+     * still see the old {@link #mStarted}.
+     */
+    private volatile int mFence;
+    
+    private LocationHistory(int capacity) {
+        mCapacity = capacity;
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mTimes = new long[capacity];
+        mAccuracies = new float[capacity];
+        mSpeeds = new float[capacity];
+    }
+    
+    /**
+     * Get a singleton instance of {@link LocationHistory}.
+     */
+    public static LocationHistory getInstance() {
+        return sInstance;
+    }
+    
+    /**
+     * Record a fix, overwriting the oldest one when the buffer is full.
+     * A fix with the same time and coordinates as the last one is
+     * ignored, since every receiver gets the same broadcast.
+     * 
+     * @param location
+     * @return true if the fix was recorded.
+     */
+    public synchronized boolean add(Location location) {
+        if (location == null) {
+            return false;
+        }
+        
+        long count = mFinished;
+        if (count > 0) {
+            int last = (int) ((count - 1) % mCapacity);
+            if (mTimes[last] == location.getTime()
+                    && mLatitudes[last] == location.getLatitude()
+                    && mLongitudes[last] == location.getLongitude()) {
+                return false;
+            }
+        }
+        
+        // Readers drop the slot we're about to overwrite; the fence
+        // keeps our writes to it from being seen before this
+        mStarted = count + 1;
+        int fence = mFence;
+        
+        int slot = (int) (count % mCapacity);
+        mLatitudes[slot] = location.getLatitude();
+        mLongitudes[slot] = location.getLongitude();
+        mTimes[slot] = location.getTime();
+        mAccuracies[slot] = location.hasAccuracy() ? location.getAccuracy() : -1;
+        mSpeeds[slot] = location.hasSpeed() ? location.getSpeed() : -1;
+        
+        mFinished = count + 1;
+        mFence = fence + 1;
+        return true;
+    }
+    
+    /** Get the number of fixes recorded since the application started. */
+    public long getTotalCount() {
+        return mFinished;
+    }
+    
+    /**
+     * Copy the most recent fixes, oldest first, into a snapshot. This
+     * never blocks and allocates nothing, so it is safe to call from
+     * the main thread as often as needed.
+     * 
+     * @param snapshot the snapshot to fill; its old contents are replaced.
+     * @return the number of fixes copied.
+     */
+    public int read(Snapshot snapshot) {
+        long end = mFinished;
+        long start = Math.max(0, end - Math.min(mCapacity, snapshot.capacity));
+        
+        int n = 0;
+        for (long i = start; i < end; i++) {
+            int slot = (int) (i % mCapacity);
+            snapshot.latitudes[n] = mLatitudes[slot];
+            snapshot.longitudes[n] = mLongitudes[slot];
+            snapshot.times[n] = mTimes[slot];
+            snapshot.accuracies[n] = mAccuracies[slot];
+            snapshot.speeds[n] = mSpeeds[slot];
+            n++;
+        }
+        
+        // Drop any fixes a writer lapped while we were copying; the
+        // fence keeps our copies from being made after this check
+        mFence = 0;
+        long overwritten = mStarted - mCapacity - start;
+        if (overwritten > 0) {
+            int skip = (int) Math.min(overwritten, n);
+            n -= skip;
+            System.arraycopy(snapshot.latitudes, skip, snapshot.latitudes, 0, n);
+            System.arraycopy(snapshot.longitudes, skip, snapshot.longitudes, 0, n);
+            System.arraycopy(snapshot.times, skip, snapshot.times, 0, n);
+            System.arraycopy(snapshot.accuracies, skip, snapshot.accuracies, 0, n);
+            System.arraycopy(snapshot.speeds, skip, snapshot.speeds, 0, n);
+        }
+        
+        snapshot.count = n;
+        return n;
+    }
+    
+    /**
+     * A reusable copy of recent fixes in parallel arrays. Entries
+     * {@code 0} to {@code count - 1} are valid, oldest first. An
+     * accuracy or speed of {@code -1} means the fix had none.
+     */
+    public static class Snapshot {
+        public final int capacity;
+        public final double[] latitudes;
+        public final double[] longitudes;
+        public final long[] times;
+        public final float[] accuracies;
+        public final float[] speeds;
+        public int count;
+        
+        /**
+         * @param capacity the most fixes this snapshot can hold.
+         */
+        public Snapshot(int capacity) {
+            this.capacity = capacity;
+            latitudes = new double[capacity];
+            longitudes = new double[capacity];
+            times = new long[capacity];
+            accuracies = new float[capacity];
+            speeds = new float[capacity];
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.geoloqi.geotracks.maps;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+
+import com.geoloqi.geotracks.location.LocationHistory;
+import com.google.android.maps.GeoPoint;
+import com.google.android.maps.MapView;
+import com.google.android.maps.Overlay;
+import com.google.android.maps.Projection;
+
+/**
+ * This is an implementation of {@link Overlay} that draws the recent
+ * fixes kept in {@link LocationHistory} as a line on the map.
+ * 
+ * <p>The history is read on every draw without taking a lock. The fixes
+ * are only converted to points again when new ones have been
+ * recorded.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class TrackOverlay extends Overlay {
+    /** The color of the line. */
+    private static final int LINE_COLOR = 0xaa1e90ff;
+    
+    /** The width of the line in density independent pixels. */
+    private static final float LINE_WIDTH = 4;
+    
+    private final LocationHistory mHistory = LocationHistory.getInstance();
+    private final LocationHistory.Snapshot mSnapshot =
+            new LocationHistory.Snapshot(LocationHistory.CAPACITY);
+    private final GeoPoint[] mGeoPoints = new GeoPoint[LocationHistory.CAPACITY];
+    private int mCount;
+    
+    /** The number of fixes recorded when the history was last read. */
+    private long mTotalCount = -1;
+    
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path mPath = new Path();
+    private final Point mPoint = new Point();
+    
+    public TrackOverlay(Context context) {
+        mPaint.setColor(LINE_COLOR);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeJoin(Paint.Join.ROUND);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        mPaint.setStrokeWidth(LINE_WIDTH * context.getResources().getDisplayMetrics().density);
+    }
+    
+    @Override
+    public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+        if (shadow) {
+            return;
+        }
+        
+        // Pick up any new fixes
+        long total = mHistory.getTotalCount();
+        if (total != mTotalCount) {
+            mTotalCount = total;
+            mCount = mHistory.read(mSnapshot);
+            for (int i = 0; i < mCount; i++) {
+                mGeoPoints[i] = new GeoPoint((int) (mSnapshot.latitudes[i] * 1e6),
+                        (int) (mSnapshot.longitudes[i] * 1e6));
+            }
+        }
+        
+        if (mCount < 2) {
+            return;
+        }
+        
+        // Project the track for the current position and zoom
+        Projection projection = mapView.getProjection();
+        mPath.rewind();
+        for (int i = 0; i < mCount; i++) {
+            projection.toPixels(mGeoPoints[i], mPoint);
+            if (i == 0) {
+                mPath.moveTo(mPoint.x, mPoint.y);
+            } else {
+                mPath.lineTo(mPoint.x, mPoint.y);
+            }
+        }
+        canvas.drawPath(mPath, mPaint);
+    }
+}
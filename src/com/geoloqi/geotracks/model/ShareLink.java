@@ -0,0 +1,165 @@
+package com.geoloqi.geotracks.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.geoloqi.geotracks.db.LinkStore;
+import com.geoloqi.geotracks.db.LinkStore.Links;
+
+/**
+ * <p>An immutable share link as returned by the link/list API method.
+ * Dates are kept as timestamps; they are formatted for display by the
+ * list, so stored links never hold a stale time zone or locale.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class ShareLink {
+    /**
+     * The prefix of the token of a placeholder for a link that is
+     * waiting to be created by the server.
+     */
+    public static final String PENDING_TOKEN_PREFIX = "pending:";
+    
+    public final String token;
+    public final String shortlink;
+    public final String description;
+    public final String startLocationName;
+    
+    /** The time the link was created in milliseconds. */
+    public final long dateCreated;
+    
+    /** True if the link has not yet expired. */
+    public final boolean active;
+    
+    /** The first line of text to display; the description or shortlink. */
+    public final String title;
+    
+    public ShareLink(String token, String shortlink, String description,
+            String startLocationName, long dateCreated, boolean active) {
+        this.token = token;
+        this.shortlink = shortlink;
+        this.description = description;
+        this.startLocationName = startLocationName;
+        this.dateCreated = dateCreated;
+        this.active = active;
+        this.title = !TextUtils.isEmpty(description) ? description : shortlink;
+    }
+    
+    /**
+     * Create a link from a JSON object returned by the API.
+     * 
+     * @param json
+     * @return a new link.
+     */
+    public static ShareLink fromJson(JSONObject json) {
+        return new ShareLink(
+                json.optString("token"),
+                json.optString("shortlink"),
+                json.optString("description"),
+                json.optString("start_location_name"),
+                json.optLong("date_created_ts") * 1000,
+                json.optInt("currently_active") > 0);
+    }
+    
+    /**
+     * Create a placeholder for a link that has been queued for creation.
+     * 
+     * @param key the key of the queued link/create operation.
+     * @param description
+     * @param dateCreated the time the link was queued in milliseconds.
+     * @return a new active link without a shortlink.
+     */
+    public static ShareLink newPending(String key, String description, long dateCreated) {
+        return new ShareLink(PENDING_TOKEN_PREFIX + key, null, description, null,
+                dateCreated, true);
+    }
+    
+    /** Returns true if the token belongs to a placeholder link. */
+    public static boolean isPendingToken(String token) {
+        return token != null && token.startsWith(PENDING_TOKEN_PREFIX);
+    }
+    
+    /**
+     * Create a link from the current row of a cursor over
+     * {@link LinkStore#PROJECTION}.
+     * 
+     * @param cursor
+     * @return a new link.
+     */
+    public static ShareLink fromCursor(Cursor cursor) {
+        return new ShareLink(
+                cursor.getString(cursor.getColumnIndexOrThrow(Links.TOKEN)),
+                cursor.getString(cursor.getColumnIndexOrThrow(Links.SHORTLINK)),
+                cursor.getString(cursor.getColumnIndexOrThrow(Links.DESCRIPTION)),
+                cursor.getString(cursor.getColumnIndexOrThrow(Links.START_LOCATION_NAME)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(Links.DATE_CREATED)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(Links.ACTIVE)) > 0);
+    }
+    
+    /**
+     * Create a list of links from a JSON array returned by the API.
+     * 
+     * @param links
+     * @return a new list of links.
+     * @throws JSONException if an element of the array is not an object.
+     */
+    public static List<ShareLink> fromJsonArray(JSONArray links) throws JSONException {
+        int length = links.length();
+        List<ShareLink> result = new ArrayList<ShareLink>(length);
+        for (int i = 0; i < length; i++) {
+            result.add(fromJson(links.getJSONObject(i)));
+        }
+        return result;
+    }
+    
+    /** Returns true if this is a placeholder waiting to be created. */
+    public boolean isPending() {
+        return isPendingToken(token);
+    }
+    
+    /** Get a copy of this link that has expired. */
+    public ShareLink expire() {
+        if (!active) {
+            return this;
+        }
+        return new ShareLink(token, shortlink, description, startLocationName,
+                dateCreated, false);
+    }
+    
+    /** Get the text used when sharing this link with another app. */
+    public String getShareText() {
+        return String.format("%s: %s", description, shortlink);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ShareLink)) {
+            return false;
+        }
+        
+        // The title is derived from the other fields
+        ShareLink other = (ShareLink) o;
+        return dateCreated == other.dateCreated
+                && active == other.active
+                && TextUtils.equals(token, other.token)
+                && TextUtils.equals(shortlink, other.shortlink)
+                && TextUtils.equals(description, other.description)
+                && TextUtils.equals(startLocationName, other.startLocationName);
+    }
+    
+    @Override
+    public int hashCode() {
+        return token != null ? token.hashCode() : 0;
+    }
+
+}
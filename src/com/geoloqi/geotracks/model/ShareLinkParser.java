@@ -0,0 +1,111 @@
+package com.geoloqi.geotracks.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * <p>A streaming parser for link/list responses. Links are read
+ * straight from the response body into {@link ShareLink} objects,
+ * without building a JSON tree of the response first. Fields that
+ * are not used by {@link ShareLink} are skipped.</p>
+ * 
+ * <p>This class uses {@link JsonReader} and must only be used on
+ * API 11 and later.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class ShareLinkParser {
+    private static final String CHARSET = "UTF-8";
+    
+    private static final String FIELD_LINKS = "links";
+    private static final String FIELD_TOKEN = "token";
+    private static final String FIELD_SHORTLINK = "shortlink";
+    private static final String FIELD_DESCRIPTION = "description";
+    private static final String FIELD_START_LOCATION_NAME = "start_location_name";
+    private static final String FIELD_DATE_CREATED_TS = "date_created_ts";
+    private static final String FIELD_CURRENTLY_ACTIVE = "currently_active";
+    
+    /**
+     * Parse the links from a link/list response body. The stream is
+     * closed when finished.
+     * 
+     * @param in
+     * @return the links in the order they appear in the response.
+     * @throws IOException if the stream could not be read or is not
+     *         a valid link/list response.
+     */
+    public static List<ShareLink> parseLinkList(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, CHARSET));
+        try {
+            List<ShareLink> links = new ArrayList<ShareLink>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (FIELD_LINKS.equals(reader.nextName())
+                        && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        links.add(readLink(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return links;
+        } catch (IllegalStateException e) {
+            // The response did not have the structure we expected
+            throw new IOException(e.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException(e.toString());
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /** Read a single link object. */
+    private static ShareLink readLink(JsonReader reader) throws IOException {
+        String token = "";
+        String shortlink = "";
+        String description = "";
+        String startLocationName = "";
+        long dateCreated = 0;
+        boolean active = false;
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (FIELD_TOKEN.equals(name)) {
+                token = reader.nextString();
+            } else if (FIELD_SHORTLINK.equals(name)) {
+                shortlink = reader.nextString();
+            } else if (FIELD_DESCRIPTION.equals(name)) {
+                description = reader.nextString();
+            } else if (FIELD_START_LOCATION_NAME.equals(name)) {
+                startLocationName = reader.nextString();
+            } else if (FIELD_DATE_CREATED_TS.equals(name)) {
+                dateCreated = reader.nextLong() * 1000;
+            } else if (FIELD_CURRENTLY_ACTIVE.equals(name)) {
+                if (reader.peek() == JsonToken.BOOLEAN) {
+                    active = reader.nextBoolean();
+                } else {
+                    active = reader.nextInt() > 0;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        
+        return new ShareLink(token, shortlink, description, startLocationName,
+                dateCreated, active);
+    }
+}
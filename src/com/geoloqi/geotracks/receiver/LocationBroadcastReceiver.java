@@ -6,6 +6,8 @@ import android.os.Bundle;
 
 import com.geoloqi.android.sdk.LQTracker.LQTrackerProfile;
 import com.geoloqi.android.sdk.receiver.LQBroadcastReceiver;
+import com.geoloqi.geotracks.location.BestLocationProvider;
+import com.geoloqi.geotracks.location.LocationHistory;
 
 /**
  * An implementation of the abstract receiver
@@ -19,7 +21,8 @@ public class LocationBroadcastReceiver extends LQBroadcastReceiver {
 
     @Override
     public void onLocationChanged(Context context, Location location) {
-        // Pass
+        BestLocationProvider.getInstance(context).offer(location);
+        LocationHistory.getInstance().add(location);
     }
 
     @Override
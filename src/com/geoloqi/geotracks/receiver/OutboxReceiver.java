@@ -0,0 +1,27 @@
+package com.geoloqi.geotracks.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+
+import com.geoloqi.geotracks.db.LinkOutbox;
+
+/**
+ * Starts a {@link LinkOutbox} delivery pass when the network becomes
+ * available or a retry is due. This receiver is only enabled while
+ * operations are waiting in the outbox.
+ *
+ * @author Tristan Waddington
+ */
+public class OutboxReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())
+                && intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            // We lost the network; wait for it to return
+            return;
+        }
+        LinkOutbox.getInstance(context).deliver();
+    }
+}
@@ -1,19 +1,27 @@
 package com.geoloqi.geotracks.ui;
 
-import org.apache.http.Header;
-import org.apache.http.StatusLine;
-import org.json.JSONArray;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.location.Location;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v4.app.ListFragment;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -25,21 +33,30 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.FilterQueryProvider;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.SpinnerAdapter;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.SherlockListActivity;
+import com.actionbarsherlock.view.ActionMode;
 import com.actionbarsherlock.view.Menu;
-import com.geoloqi.android.sdk.LQException;
 import com.geoloqi.android.sdk.LQSession;
-import com.geoloqi.android.sdk.LQSession.OnRunApiRequestListener;
 import com.geoloqi.android.sdk.service.LQService;
 import com.geoloqi.android.sdk.service.LQService.LQBinder;
-import com.geoloqi.geotracks.utils.LocationUtils;
+import com.geoloqi.geotracks.db.LinkOutbox;
+import com.geoloqi.geotracks.db.LinkStore;
+import com.geoloqi.geotracks.db.LinkSync;
+import com.geoloqi.geotracks.location.BestLocationProvider;
+import com.geoloqi.geotracks.model.ShareLink;
+import com.geoloqi.geotracks.widget.LazyImageLoader;
 import com.geoloqi.geotracks.widget.LinkListAdapter;
+import com.geoloqi.geotracks.widget.PinnedSectionHeader;
+import com.geoloqi.geotracks.widget.ScrollPrefetcher;
 import com.geoloqi.geotracks.R;
 
 /**
@@ -49,16 +66,51 @@ import com.geoloqi.geotracks.R;
  * @author Tristan Waddington
  */
 public class LinkListActivity extends SherlockListActivity implements
-        OnItemClickListener, ActionBar.OnNavigationListener {
+        OnItemClickListener, ActionBar.OnNavigationListener, LinkSync.OnSyncListener,
+        LinkOutbox.OnDeliveryListener {
     private static final String TAG = "LinkListActivity";
     
-    private JSONArray mItems;
+    /** The accuracy wanted for the location of an expiration, in meters. */
+    private static final float FIX_ACCURACY = 200;
+    
+    /** The longest to wait for that accuracy, in milliseconds. */
+    private static final long FIX_TIMEOUT = 5 * 1000;
+    
+    /**
+     * The longest an expiration is held back waiting for that fix. The
+     * retry alarm sends it afterwards if the fix never arrives.
+     */
+    private static final long FIX_HOLD = 2 * FIX_TIMEOUT;
+    
     private LinkListAdapter mAdapter;
+    private ScrollPrefetcher mPrefetcher;
     private SpinnerAdapter mSpinnerAdapter;
+    private EditText mSearchBox;
+    
+    /** The action mode used to select links; null when not selecting. */
+    private ActionMode mActionMode;
+    private Toast mToast;
+    
+    /** The current search; empty to show every link. */
+    private String mQuery = "";
+    
+    /** True once our state has been handed to the next instance. */
+    private boolean mRetained;
+    private boolean mDestroyed;
+    
+    /**
+     * True while we're paused; changes to the stored links are then
+     * only noted in {@link #mStale} and shown when we resume.
+     */
+    private boolean mPaused = true;
+    private boolean mStale;
     
     private LQService mService;
     private boolean mBound;
     
+    /** Keeps the stored links up to date with the server. */
+    private LinkSync mSync;
+    
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,14 +131,97 @@ public class LinkListActivity extends SherlockListActivity implements
         
         // Configure our ListView
         ListView lv = getListView();
-        lv.setFastScrollEnabled(false);
+        lv.setFastScrollEnabled(true);
         lv.setOnItemClickListener(this);
         
         // Show the loading indicator
+        mSearchBox = (EditText) findViewById(R.id.search);
         setListShown(false);
         
         // Register our context menu
         registerForContextMenu(lv);
+        
+        // Show the stored links right away; the server is asked for
+        // any changes once we're bound to the service.
+        mAdapter = new LinkListAdapter(this);
+        setListAdapter(mAdapter);
+        
+        // Pick up where the last instance left off after a
+        // configuration change rather than loading everything again.
+        RetainedState state = getRetainedState();
+        if (state != null) {
+            mSync = state.sync;
+            mSync.setListener(this);
+            mQuery = state.query;
+            mAdapter.changeCursor(state.cursor);
+            if (state.cursor != null && (state.cursor.getCount() > 0 || !mSync.isRunning())) {
+                setListShown(true);
+            }
+        } else {
+            mSync = new LinkSync(this, this);
+        }
+        
+        // Prefetch images for the rows about to be shown, and keep the
+        // header of the top section pinned over the list
+        mPrefetcher = new ScrollPrefetcher(this, mAdapter);
+        TextView header = (TextView) findViewById(R.id.pinned_header);
+        lv.setOnScrollListener(new PinnedSectionHeader(header, mAdapter, mPrefetcher));
+        
+        // Filter the links as the user types. The adapter runs each
+        // query on its own background thread and only delivers the
+        // results of the latest one.
+        mAdapter.setFilterQueryProvider(new LinkQueryProvider());
+        mSearchBox.addTextChangedListener(new SearchWatcher());
+        
+        if (state == null || state.cursor == null) {
+            new LoadLinksTask().execute();
+        }
+        
+        // Follow our queued changes for as long as we exist, so none
+        // are missed while another activity is in front of us
+        LinkOutbox.getInstance(this).addListener(this);
+    }
+    
+    /**
+     * Get the state retained by the last instance, if any.
+     * 
+     * <p>This list is a {@link SherlockListActivity}, not a
+     * FragmentActivity, so a retained fragment is not available. The
+     * non-configuration instance is the only way to hand a running
+     * sync and an open cursor to the next instance.</p>
+     */
+    @SuppressWarnings("deprecation")
+    private RetainedState getRetainedState() {
+        return (RetainedState) getLastNonConfigurationInstance();
+    }
+    
+    /** See {@link #getRetainedState()}. */
+    @Override
+    @SuppressWarnings("deprecation")
+    public Object onRetainNonConfigurationInstance() {
+        // Keep the sync running and our cursor open for the next instance
+        mRetained = true;
+        mSync.setListener(null);
+        
+        RetainedState state = new RetainedState();
+        state.sync = mSync;
+        state.cursor = mAdapter.swapCursor(null);
+        state.query = mQuery;
+        return state;
+    }
+    
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        
+        LinkOutbox.getInstance(this).removeListener(this);
+        
+        // Stop syncing and close our cursor unless they were retained
+        if (!mRetained) {
+            mSync.cancel();
+            mAdapter.changeCursor(null);
+        }
     }
     
     @Override
@@ -96,11 +231,18 @@ public class LinkListActivity extends SherlockListActivity implements
         // Bind to the tracking service so we can call public methods on it
         Intent intent = new Intent(this, LQService.class);
         bindService(intent, mConnection, BIND_AUTO_CREATE);
+        
+        // Show any changes made while we were paused
+        mPaused = false;
+        if (mStale) {
+            reloadLinks();
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mPaused = true;
         
         // Unbind from LQService
         if (mBound) {
@@ -109,6 +251,16 @@ public class LinkListActivity extends SherlockListActivity implements
         }
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        
+        // Newer platforms notify the image loader directly
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            LazyImageLoader.getInstance(this).onLowMemory();
+        }
+    }
+    
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -124,12 +276,18 @@ public class LinkListActivity extends SherlockListActivity implements
         switch(item.getItemId()) {
         case R.id.menu_refresh:
             if (mBound && mService != null) {
-                onRefreshRequested(mService);
+                onRefreshRequested(mService, true);
             }
             return true;
         case R.id.menu_share:
             startActivity(new Intent(this, NewShareLinkActivity.class));
             return true;
+        case R.id.menu_select:
+            if (mActionMode == null) {
+                mActionMode = startActionMode(new SelectionCallback());
+                updateSelectionTitle();
+            }
+            return true;
         case R.id.menu_settings:
             startActivity(new Intent(this, SettingsActivity.class));
             return true;
@@ -139,11 +297,22 @@ public class LinkListActivity extends SherlockListActivity implements
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-        JSONObject link = mAdapter.getItem(position);
+        if (mActionMode != null) {
+            // Check or uncheck the link
+            mAdapter.toggleItemChecked(id);
+            updateSelectionTitle();
+            return;
+        }
+        
+        ShareLink link = mAdapter.getLink(position);
+        if (link.isPending()) {
+            showToast("This link hasn't been created yet.");
+            return;
+        }
         
         // Start our message detail activity
         Intent intent = new Intent(Intent.ACTION_VIEW,
-                Uri.parse(link.optString("shortlink")));
+                Uri.parse(link.shortlink));
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         startActivity(intent);
@@ -160,37 +329,38 @@ public class LinkListActivity extends SherlockListActivity implements
         
         // Get our context item info
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
-        JSONObject link = (JSONObject) mAdapter.getItem(info.position);
+        ShareLink link = mAdapter.getLink(info.position);
         
         // Disable the deactivate menu item if the share link
         // has already expired!
         MenuItem linkDeactivateItem = menu.findItem(R.id.menu_link_deactivate);
         if (linkDeactivateItem != null) {
-            boolean isActive = link.optInt("currently_active") > 0;
-            if (isActive) {
+            if (link.active && !link.isPending()) {
                 linkDeactivateItem.setEnabled(true);
             } else {
                 linkDeactivateItem.setEnabled(false);
             }
         }
+        
+        // A link that is still being created has nothing to share yet
+        MenuItem linkShareItem = menu.findItem(R.id.menu_link_share);
+        if (linkShareItem != null) {
+            linkShareItem.setEnabled(!link.isPending());
+        }
     }
     
     @Override
     public boolean onContextItemSelected(MenuItem item) {
         AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-        JSONObject link = (JSONObject) mAdapter.getItem(info.position);
+        ShareLink link = mAdapter.getLink(info.position);
         
         switch (item.getItemId()) {
         case R.id.menu_link_deactivate:
             // Expire the share link
-            expireLink(info, link);
+            expireLinks(Collections.singletonList(link));
             return true;
         case R.id.menu_link_share:
-            Intent intent = new Intent(Intent.ACTION_SEND);
-            intent.setType("text/plain");
-            intent.putExtra(Intent.EXTRA_TEXT, String.format("%s: %s",
-                    link.optString("description"), link.optString("shortlink")));
-            startActivity(Intent.createChooser(intent, null));
+            shareLinks(Collections.singletonList(link));
             return true;
         }
         return false;
@@ -217,89 +387,196 @@ public class LinkListActivity extends SherlockListActivity implements
     }
     
     private void setListShown(boolean shown) {
-        ListView lv = getListView();
+        View lv = findViewById(R.id.list_container);
         ViewGroup gv = (ViewGroup) findViewById(android.R.id.empty);
         ProgressBar pb = (ProgressBar) findViewById(android.R.id.progress);
         if (shown) {
             pb.setVisibility(View.GONE);
+            mSearchBox.setVisibility(View.VISIBLE);
             lv.setVisibility(View.VISIBLE);
             gv.setVisibility(View.VISIBLE);
         } else {
+            mSearchBox.setVisibility(View.GONE);
             lv.setVisibility(View.GONE);
             gv.setVisibility(View.GONE);
             pb.setVisibility(View.VISIBLE);
         }
     }
     
-    private void expireLink(final AdapterContextMenuInfo info,
-            final JSONObject link) {
-        try {
-            // Update the link object
-            link.put("currently_active", 0);
-            
-            // Update our items array
-            mItems.put(info.position, link);
-            
-            // Notify our list adapter of the update
-            mAdapter.notifyDataSetChanged();
-            
-            // Notify the server that the link should be expired
-            if (mBound && mService != null) {
-                LQSession session = mService.getSession();
-                if (session != null) {
-                    // Get our last known location
-                    Location location = LocationUtils.getLastKnownLocation(this);
-                    
-                    JSONObject data = new JSONObject();
-                    data.put("token", link.optString("token"));
-                    data.put("longitude", location.getLongitude());
-                    data.put("latitude", location.getLatitude());
-                    
-                    session.runPostRequest("link/expire", data,
-                            new ExpireLinkListener());
-                }
+    /**
+     * Expire some links. Every link is expired with the same location
+     * fix and sent to the server in a single outbox delivery pass.
+     * 
+     * @param links
+     */
+    private void expireLinks(List<ShareLink> links) {
+        final List<ShareLink> active = new ArrayList<ShareLink>(links.size());
+        for (ShareLink link : links) {
+            // A link that is still being created can't be expired yet
+            if (link.active && !link.isPending()) {
+                active.add(link);
             }
+        }
+        if (active.isEmpty()) {
+            return;
+        }
+        
+        // Expire the stored links now; the server is told once we know
+        // where they were expired, or without a location if it takes
+        // too long.
+        final List<String> keys;
+        try {
+            keys = LinkOutbox.getInstance(this).expireLinksLater(active, FIX_HOLD);
         } catch (JSONException e) {
             // Notify the user
-            Toast.makeText(this, "Failed to expire share link!",
-                    Toast.LENGTH_SHORT).show();
+            showToast("Failed to expire share link!");
+            return;
         }
+        
+        // Wait briefly for a fix to record where the links were expired
+        BestLocationProvider.getInstance(this).requestFix(FIX_ACCURACY, FIX_TIMEOUT,
+                new BestLocationProvider.OnFixListener() {
+            @Override
+            public void onFix(Location location) {
+                LinkOutbox.getInstance(LinkListActivity.this).releaseOperations(keys, location);
+            }
+        });
     }
-
-    /** Handle the server response from an expire link request. */
-    private class ExpireLinkListener implements OnRunApiRequestListener {
+    
+    /** Send some links to another app as a single message. */
+    private void shareLinks(List<ShareLink> links) {
+        StringBuilder text = new StringBuilder();
+        for (ShareLink link : links) {
+            if (link.isPending()) {
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(link.getShareText());
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TEXT, text.toString());
+        startActivity(Intent.createChooser(intent, null));
+    }
+    
+    private void updateSelectionTitle() {
+        if (mActionMode != null) {
+            mActionMode.setTitle(getString(R.string.links_selected,
+                    mAdapter.getCheckedItemCount()));
+        }
+    }
+    
+    /**
+     * Show a message, replacing the last one. Bulk actions can report
+     * many results at once and they should not queue up.
+     */
+    private void showToast(String text) {
+        if (mToast == null) {
+            mToast = Toast.makeText(this, text, Toast.LENGTH_SHORT);
+        } else {
+            mToast.setText(text);
+        }
+        mToast.show();
+    }
+    
+    /** Select several links and act on all of them at once. */
+    private class SelectionCallback implements ActionMode.Callback {
         @Override
-        public void onComplete(LQSession session, JSONObject json,
-                Header[] headers, StatusLine status) {
-            // Notify the user
-            Toast.makeText(LinkListActivity.this,
-                    json.optString("error_description"), Toast.LENGTH_SHORT).show();
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.link_selection_menu, menu);
+            return true;
         }
+        
         @Override
-        public void onFailure(LQSession session, LQException e) {
-            Log.e(TAG, "Failed to expire share link!", e);
-            
-            // Notify the user
-            Toast.makeText(LinkListActivity.this,
-                    "Failed to expire share link!", Toast.LENGTH_SHORT).show();
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
         }
+        
         @Override
-        public void onSuccess(LQSession session, JSONObject json,
-                Header[] headers) {
+        public boolean onActionItemClicked(ActionMode mode,
+                com.actionbarsherlock.view.MenuItem item) {
+            switch (item.getItemId()) {
+            case R.id.menu_links_expire:
+                expireLinks(mAdapter.getCheckedLinks());
+                mode.finish();
+                return true;
+            case R.id.menu_links_share:
+                shareLinks(mAdapter.getCheckedLinks());
+                mode.finish();
+                return true;
+            }
+            return false;
+        }
+        
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mAdapter.clearCheckedItems();
+            mActionMode = null;
+        }
+    }
+    
+    @Override
+    public void onQueued(List<LinkOutbox.Operation> operations) {
+        // Show the change right away
+        reloadLinks();
+    }
+    
+    @Override
+    public void onDelivered(LinkOutbox.Operation operation, JSONObject response) {
+        if (LinkOutbox.PATH_LINK_EXPIRE.equals(operation.path)) {
             // Notify the user
-            Toast.makeText(LinkListActivity.this,
-                    "Link expired!", Toast.LENGTH_SHORT).show();
+            if (!mPaused) {
+                showToast("Link expired!");
+            }
+        } else {
+            // A new link may have been stored
+            reloadLinks();
         }
     }
-
+    
+    @Override
+    public void onDeliveryDeferred(LinkOutbox.Operation operation) {
+        // Pass
+    }
+    
+    @Override
+    public void onDeliveryFailed(LinkOutbox.Operation operation) {
+        if (LinkOutbox.PATH_LINK_EXPIRE.equals(operation.path)) {
+            // Notify the user
+            if (!mPaused) {
+                showToast("Failed to expire share link!");
+            }
+        }
+        
+        // Show the reverted link, then replace it with the server's copy
+        reloadLinks();
+        if (mBound && mService != null) {
+            onRefreshRequested(mService, true);
+        }
+    }
+    
     public void onServiceConnected(LQService service) {
         Log.d(TAG, "onServiceConnected");
         
-        // Refresh the list adapter
-        onRefreshRequested(service);
+        // Refresh the list adapter if it's stale. We're bound again on
+        // every resume, so this must not force a sync.
+        onRefreshRequested(service, false);
     }
 
-    public void onRefreshRequested(LQService service) {
+    /**
+     * Sync the stored links with the server. A sync already running is
+     * joined rather than repeated.
+     * 
+     * @param service
+     * @param force true to sync even if the stored links are fresh.
+     */
+    public void onRefreshRequested(LQService service, boolean force) {
         LQSession session = service.getSession();
         
         if (session == null) {
@@ -309,61 +586,114 @@ public class LinkListActivity extends SherlockListActivity implements
             return;
         }
         
-        // Show the loading indicator
-        setListShown(false);
+        // Only show the loading indicator if we have nothing to show
+        if (mSync.start(session, force) && mAdapter.isEmpty()
+                && TextUtils.isEmpty(mQuery)) {
+            setListShown(false);
+        }
+    }
+    
+    @Override
+    public void onLinksChanged() {
+        reloadLinks();
+    }
+    
+    /**
+     * Show the stored links again after they changed, or wait until
+     * we resume if we're paused.
+     */
+    private void reloadLinks() {
+        if (mPaused) {
+            mStale = true;
+        } else {
+            mStale = false;
+            new LoadLinksTask().execute();
+        }
+    }
+    
+    @Override
+    public void onSyncFinished(boolean success) {
+        // Hide the loading indicator; any stored links remain
+        setListShown(true);
+    }
+    
+    /** Filter the list with the contents of the search box. */
+    private class SearchWatcher implements TextWatcher {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            // Pass
+        }
         
-        session.runGetRequest("link/list", new OnRunApiRequestListener() {
-            @Override
-            public void onSuccess(LQSession session, JSONObject json,
-                    Header[] headers) {
-                // Create our list adapter
-                mAdapter = new LinkListAdapter(LinkListActivity.this);
-                
-                try {
-                    mItems = json.getJSONArray("links");
-                    
-                    for (int i = 0; i < mItems.length(); i++) {
-                        mAdapter.add(mItems.getJSONObject(i));
-                    }
-                    
-                    // Hide the loading indicator
-                    setListShown(true);
-                    
-                    // Populate our list adapter
-                    setListAdapter(mAdapter);
-                } catch (JSONException e) {
-                    Log.e(TAG, "Failed to parse the list of trips!", e);
-                } catch (IllegalStateException e) {
-                    // The Fragment was probably detached while the
-                    // request was in-progress. We should cancel
-                    // the request when this happens.
-                }
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            // Pass
+        }
+        
+        @Override
+        public void afterTextChanged(Editable s) {
+            String query = s.toString().trim();
+            if (!query.equals(mQuery)) {
+                mQuery = query;
+                mAdapter.getFilter().filter(query);
             }
-            @Override
-            public void onFailure(LQSession session, LQException e) {
-                Log.e(TAG, "Failed to load the trip list!", e);
-                
-                // Hide the loading indicator
-                setListShown(true);
-                
-                // Set an empty adapter on the list
-                setListAdapter(new LinkListAdapter(LinkListActivity.this));
+        }
+    }
+    
+    /**
+     * Search the {@link LinkStore} for the adapter's filter. Called on
+     * the filter's background thread.
+     */
+    private class LinkQueryProvider implements FilterQueryProvider {
+        private final LinkStore mStore = LinkStore.getInstance(LinkListActivity.this);
+        
+        @Override
+        public Cursor runQuery(CharSequence constraint) {
+            try {
+                return mStore.queryLinks(constraint);
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to search share links!", e);
+                return null;
             }
-            @Override
-            public void onComplete(LQSession session, JSONObject json,
-                    Header[] headers, StatusLine status) {
-                Log.d(TAG, status.toString());
-                Log.e(TAG, "Failed to load the trip list!");
-                
-                // Hide the loading indicator
+        }
+    }
+    
+    /**
+     * Query the {@link LinkStore} for the current search on a background
+     * thread and show the results in the list.
+     */
+    private class LoadLinksTask extends AsyncTask<Void, Void, Cursor> {
+        private final LinkStore mStore = LinkStore.getInstance(LinkListActivity.this);
+        private final String mTaskQuery = mQuery;
+        
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            return mStore.queryLinks(mTaskQuery);
+        }
+        
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (isFinishing() || mDestroyed || !mTaskQuery.equals(mQuery)) {
+                // The results of the new search are on their way
+                cursor.close();
+                return;
+            }
+            
+            mAdapter.changeCursor(cursor);
+            
+            // Keep the loading indicator until we have something to show
+            if (cursor.getCount() > 0 || !mSync.isRunning()) {
                 setListShown(true);
-                
-                // Set an empty adapter on the list
-                setListAdapter(new LinkListAdapter(LinkListActivity.this));
             }
-        });
+        }
     }
-
+    
+    /** The state handed to the next instance on a configuration change. */
+    private static class RetainedState {
+        public LinkSync sync;
+        public Cursor cursor;
+        public String query;
+    }
+    
     /** Defines callbacks for service binding, passed to bindService() */
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -21,8 +21,10 @@ import com.geoloqi.android.sdk.LQTracker.LQTrackerProfile;
 import com.geoloqi.android.sdk.receiver.LQBroadcastReceiver;
 import com.geoloqi.geotracks.Constants;
 import com.geoloqi.geotracks.R;
+import com.geoloqi.geotracks.location.BestLocationProvider;
+import com.geoloqi.geotracks.location.LocationHistory;
 import com.geoloqi.geotracks.maps.DoubleTapMapView;
-import com.geoloqi.geotracks.utils.LocationUtils;
+import com.geoloqi.geotracks.maps.TrackOverlay;
 import com.google.android.maps.*;
 
 import java.util.List;
@@ -88,6 +90,9 @@ public class MainActivity extends SherlockMapActivity implements
         // Get our list of map overlays
         List<Overlay> mapOverlays = mMapView.getOverlays();
         
+        // Draw our recent fixes beneath the location overlay
+        mapOverlays.add(new TrackOverlay(this));
+        
         // Set our map location overlay
         final MyLocationOverlay locationOverlay = new MyLocationOverlay(this, mMapView);
         locationOverlay.disableCompass();
@@ -170,7 +175,7 @@ public class MainActivity extends SherlockMapActivity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
         case R.id.menu_center_map:
-            Location location = LocationUtils.getLastKnownLocation(this);
+            Location location = BestLocationProvider.getInstance(this).getBestLocation();
             if (location != null) {
                 // Set the map center to the device's last known location
                 mMapCenter = new GeoPoint((int) (location.getLatitude() * 1e6),
@@ -232,6 +237,13 @@ public class MainActivity extends SherlockMapActivity implements
     private class MapBroadcastReceiver extends LQBroadcastReceiver {
         @Override
         public void onLocationChanged(Context context, Location location) {
+            // Keep the fix in our recent history
+            LocationHistory.getInstance().add(location);
+            
+            // Extend the track on the map; the other receiver may have
+            // recorded the fix first
+            mMapView.invalidate();
+            
             // TODO: Display the number of batched fixes!
         }
 
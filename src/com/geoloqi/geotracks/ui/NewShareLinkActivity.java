@@ -1,12 +1,14 @@
 package com.geoloqi.geotracks.ui;
 
-import org.apache.http.Header;
-import org.apache.http.StatusLine;
+import java.util.List;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.ProgressDialog;
 import android.content.ComponentName;
+import android.content.DialogInterface;
+import android.content.DialogInterface.OnCancelListener;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.location.Location;
@@ -20,20 +22,34 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.actionbarsherlock.app.SherlockActivity;
-import com.geoloqi.android.sdk.LQException;
-import com.geoloqi.android.sdk.LQSession;
-import com.geoloqi.android.sdk.LQSession.OnRunApiRequestListener;
 import com.geoloqi.android.sdk.service.LQService;
 import com.geoloqi.android.sdk.service.LQService.LQBinder;
-import com.geoloqi.geotracks.utils.LocationUtils;
+import com.geoloqi.geotracks.db.LinkOutbox;
 import com.geoloqi.geotracks.R;
+import com.geoloqi.geotracks.location.BestLocationProvider;
 
 public class NewShareLinkActivity extends SherlockActivity implements
-        OnClickListener {
+        OnClickListener, LinkOutbox.OnDeliveryListener {
     private static final String TAG = "NewShareLinkActivity";
 
+    /** The accuracy wanted for the start of a new link, in meters. */
+    private static final float FIX_ACCURACY = 50;
+
+    /** The longest to wait for that accuracy, in milliseconds. */
+    private static final long FIX_TIMEOUT = 15 * 1000;
+
+    private static final String EXTRA_DESCRIPTION = "description";
+    private static final String EXTRA_PENDING_KEY = "pending_key";
+    private static final String EXTRA_WAITING_FOR_FIX = "waiting_for_fix";
+
     private String mDescription;
 
+    /** The key of our queued link/create operation. */
+    private String mPendingKey;
+
+    /** Our wait for a starting location, until the link is queued. */
+    private BestLocationProvider.FixRequest mFixRequest;
+
     private ProgressDialog mProgress;
     private LQService mService;
     private boolean mBound;
@@ -50,6 +66,21 @@ public class NewShareLinkActivity extends SherlockActivity implements
         if (submitButton != null) {
             submitButton.setOnClickListener(this);
         }
+
+        // Follow our link until it is created, even while another
+        // activity is in front of us.
+        LinkOutbox.getInstance(this).addListener(this);
+
+        // Pick up where the last instance left off
+        if (savedInstanceState != null) {
+            mDescription = savedInstanceState.getString(EXTRA_DESCRIPTION);
+            mPendingKey = savedInstanceState.getString(EXTRA_PENDING_KEY);
+            if (mPendingKey != null) {
+                showProgress();
+            } else if (savedInstanceState.getBoolean(EXTRA_WAITING_FOR_FIX)) {
+                createLink(mDescription);
+            }
+        }
     }
 
     @Override
@@ -59,6 +90,12 @@ public class NewShareLinkActivity extends SherlockActivity implements
         // Bind to the tracking service so we can call public methods on it
         Intent intent = new Intent(this, LQService.class);
         bindService(intent, mConnection, BIND_AUTO_CREATE);
+
+        // Our link may have been sent while a previous process was
+        // still waiting for it; ask the outbox whether it still is.
+        if (mPendingKey != null) {
+            LinkOutbox.getInstance(this).findOperation(mPendingKey, mOperationFoundListener);
+        }
     }
 
     @Override
@@ -72,6 +109,31 @@ public class NewShareLinkActivity extends SherlockActivity implements
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        outState.putString(EXTRA_DESCRIPTION, mDescription);
+        outState.putString(EXTRA_PENDING_KEY, mPendingKey);
+        outState.putBoolean(EXTRA_WAITING_FOR_FIX, mFixRequest != null);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        LinkOutbox.getInstance(this).removeListener(this);
+
+        // Stop waiting for a fix; a new instance starts over
+        if (mFixRequest != null) {
+            mFixRequest.cancel();
+            mFixRequest = null;
+        }
+
+        // Don't leak the dialog's window
+        dismissProgress();
+    }
+
     @Override
     public void onClick(View v) {
         switch (v.getId()) {
@@ -82,80 +144,151 @@ public class NewShareLinkActivity extends SherlockActivity implements
         }
     }
 
-    private void createLink(String description) {
-        try {
-            // Notify the server that the link should be created
-            if (mBound && mService != null) {
-                LQSession session = mService.getSession();
-                if (session != null) {
-                    // Show a progress dialog
-                    mProgress = ProgressDialog.show(this, null, 
-                            getString(R.string.loading_message), true);
-                    
-                    // Get our last known location
-                    Location location = LocationUtils.getLastKnownLocation(this);
-                    
-                    JSONObject data = new JSONObject();
-                    data.put("description", description);
-                    data.put("longitude", location.getLongitude());
-                    data.put("latitude", location.getLatitude());
-                    
-                    session.runPostRequest("link/create", data,
-                            new CreateLinkListener());
+    private void createLink(final String description) {
+        // Show a progress dialog
+        showProgress();
+
+        // Wait for a fix good enough to start the link at
+        mFixRequest = BestLocationProvider.getInstance(this).requestFix(FIX_ACCURACY,
+                FIX_TIMEOUT, new BestLocationProvider.OnFixListener() {
+            @Override
+            public void onFix(Location location) {
+                mFixRequest = null;
+                try {
+                    // Queue the link; it is sent now if we're online and
+                    // retried later if we're not.
+                    mPendingKey = LinkOutbox.getInstance(NewShareLinkActivity.this)
+                            .createLink(description, location);
+                } catch (JSONException e) {
+                    dismissProgress();
+
+                    // Notify the user
+                    Toast.makeText(NewShareLinkActivity.this, "Failed to create share link!",
+                            Toast.LENGTH_SHORT).show();
                 }
             }
-        } catch (JSONException e) {
-            // Notify the user
-            Toast.makeText(this, "Failed to expire share link!",
-                    Toast.LENGTH_SHORT).show();
-        }
+        });
     }
 
-    /** Handle the server response from a create link request. */
-    private class CreateLinkListener implements OnRunApiRequestListener {
-        @Override
-        public void onComplete(LQSession session, JSONObject json,
-                Header[] headers, StatusLine status) {
-            // Hide the progress dialog
+    private void showProgress() {
+        mProgress = ProgressDialog.show(this, null,
+                getString(R.string.loading_message), true, true, mCancelListener);
+    }
+
+    private void dismissProgress() {
+        if (mProgress != null) {
             mProgress.dismiss();
-            
-            // Notify the user
-            Toast.makeText(NewShareLinkActivity.this,
-                    json.optString("error_description"), Toast.LENGTH_SHORT).show();
+            mProgress = null;
         }
+    }
+
+    /** Called when the user backs out of the progress dialog. */
+    private OnCancelListener mCancelListener = new OnCancelListener() {
         @Override
-        public void onFailure(LQSession session, LQException e) {
-            Log.e(TAG, "Failed to create new share link!", e);
-            // Hide the progress dialog
-            mProgress.dismiss();
-            
-            // Notify the user
-            Toast.makeText(NewShareLinkActivity.this,
-                    "Failed to create share link!", Toast.LENGTH_SHORT).show();
+        public void onCancel(DialogInterface dialog) {
+            mProgress = null;
+
+            if (mFixRequest != null) {
+                // Nothing has been queued yet; let the user try again
+                mFixRequest.cancel();
+                mFixRequest = null;
+            } else if (mPendingKey != null) {
+                // The outbox keeps going without us
+                mPendingKey = null;
+                Toast.makeText(NewShareLinkActivity.this,
+                        "Your link will be created in the background.",
+                        Toast.LENGTH_LONG).show();
+                finish();
+            }
         }
+    };
+
+    /** Answers our check on the link/create operation in onResume. */
+    private LinkOutbox.OnOperationFoundListener mOperationFoundListener =
+            new LinkOutbox.OnOperationFoundListener() {
         @Override
-        public void onSuccess(LQSession session, JSONObject json,
-                Header[] headers) {
-            // Hide the progress dialog
-            mProgress.dismiss();
-            
-            // Notify the user
-            Toast.makeText(NewShareLinkActivity.this,
-                    "Link created!", Toast.LENGTH_SHORT).show();
-            
-            String shortlink = json.optString("shortlink");
-            
-            // Start the sharing dialog
-            Intent shareIntent = new Intent(Intent.ACTION_SEND);
-            shareIntent.setType("text/plain");
-            shareIntent.putExtra(Intent.EXTRA_TEXT,
-                    String.format("%s: %s", mDescription, shortlink));
-            startActivity(Intent.createChooser(shareIntent,
-                    getString(R.string.share_link_dialog_title)));
-            
-            // End the activity
-            finish();
+        public void onOperationFound(String key, LinkOutbox.Operation operation) {
+            if (!key.equals(mPendingKey)) {
+                // We've already heard how it went
+                return;
+            }
+
+            if (operation == null) {
+                // It was sent or dropped before we were listening
+                mPendingKey = null;
+                dismissProgress();
+                Toast.makeText(NewShareLinkActivity.this,
+                        "Check your links for the new link.", Toast.LENGTH_LONG).show();
+                finish();
+            } else if (operation.attempts > 0) {
+                // It is already waiting to be retried
+                onDeliveryDeferred(operation);
+            }
+        }
+    };
+
+    @Override
+    public void onQueued(List<LinkOutbox.Operation> operations) {
+        // Pass
+    }
+
+    @Override
+    public void onDelivered(LinkOutbox.Operation operation, JSONObject json) {
+        if (!operation.key.equals(mPendingKey)) {
+            return;
+        }
+        mPendingKey = null;
+
+        // Hide the progress dialog
+        dismissProgress();
+
+        // Notify the user
+        Toast.makeText(this, "Link created!", Toast.LENGTH_SHORT).show();
+
+        String shortlink = json.optString("shortlink");
+
+        // Start the sharing dialog
+        Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.setType("text/plain");
+        shareIntent.putExtra(Intent.EXTRA_TEXT,
+                String.format("%s: %s", mDescription, shortlink));
+        startActivity(Intent.createChooser(shareIntent,
+                getString(R.string.share_link_dialog_title)));
+
+        // End the activity
+        finish();
+    }
+
+    @Override
+    public void onDeliveryDeferred(LinkOutbox.Operation operation) {
+        if (!operation.key.equals(mPendingKey)) {
+            return;
         }
+        mPendingKey = null;
+
+        // Hide the progress dialog
+        dismissProgress();
+
+        // The outbox will keep trying in the background
+        Toast.makeText(this, "Your link will be created when you're back online.",
+                Toast.LENGTH_LONG).show();
+        finish();
+    }
+
+    @Override
+    public void onDeliveryFailed(LinkOutbox.Operation operation) {
+        if (!operation.key.equals(mPendingKey)) {
+            return;
+        }
+        mPendingKey = null;
+        Log.e(TAG, "Failed to create new share link!");
+
+        // Hide the progress dialog
+        dismissProgress();
+
+        // Notify the user
+        Toast.makeText(this, "Failed to create share link!",
+                Toast.LENGTH_SHORT).show();
     }
 
     /** Defines callbacks for service binding, passed to bindService() */
@@ -27,6 +27,7 @@ import com.geoloqi.android.sdk.LQTracker;
 import com.geoloqi.android.sdk.service.LQService;
 import com.geoloqi.android.sdk.service.LQService.LQBinder;
 import com.geoloqi.geotracks.R;
+import com.geoloqi.geotracks.db.LinkOutbox;
 
 /**
  * This Activity class handles all the logic required to authenticate
@@ -144,6 +145,9 @@ public class SignInActivity extends SherlockActivity implements OnClickListener
                 // Update the tracker with the new session
                 tracker.setSession(session);
                 
+                // Send any changes that were waiting for a session
+                LinkOutbox.getInstance(SignInActivity.this).deliver();
+                
                 // Finish the activity
                 finish();
             }
@@ -0,0 +1,43 @@
+package com.geoloqi.geotracks.utils;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.geoloqi.android.sdk.LQSession;
+
+/**
+ * <p>A collection of static methods for building Geoloqi API requests
+ * that are sent outside of {@link LQSession}, such as requests whose
+ * responses are streamed.</p>
+ * 
+ * <p>The SDK keeps its base URL private, so {@link #API_URL} repeats
+ * it. Keep the two in step when libs/geoloqi.jar is upgraded.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class ApiUtils {
+    /** The base URL of the API, the same one {@link LQSession} uses. */
+    public static final String API_URL = "https://api.geoloqi.com/1/";
+    
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+    
+    /**
+     * Get the URL of an API method.
+     * 
+     * @param path the API method, such as "link/list".
+     * @return an absolute URL.
+     */
+    public static String getApiUrl(String path) {
+        return API_URL + path;
+    }
+    
+    /**
+     * Authorize a request with a session's access token, the same way
+     * {@link LQSession} authorizes its own requests.
+     * 
+     * @param request
+     * @param accessToken
+     */
+    public static void authorize(HttpRequestBase request, String accessToken) {
+        request.setHeader(HEADER_AUTHORIZATION, String.format("OAuth %s", accessToken));
+    }
+}
@@ -0,0 +1,108 @@
+package com.geoloqi.geotracks.utils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * <p>A size-bounded pool of mutable {@link Bitmap} objects that are no
+ * longer displayed and may be decoded into again with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. Reusing a
+ * bitmap avoids allocating a new pixel buffer and the garbage
+ * collection that would follow.</p>
+ * 
+ * <p>Bitmaps are matched on their exact dimensions and config. When
+ * the pool is full the oldest bitmaps are recycled.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class BitmapPool {
+    /** The pooled bitmaps in the order they were added. */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    
+    /** The maximum number of bytes the pooled bitmaps may use. */
+    private final int mMaxSize;
+    
+    /** The number of bytes used by the pooled bitmaps. */
+    private int mSize;
+    
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+    
+    /**
+     * Add a bitmap to the pool. The caller must guarantee that the bitmap
+     * is no longer referenced by any view.
+     * 
+     * @param bitmap
+     * @return true if the bitmap was pooled; false if it can't be reused.
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        
+        int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        
+        mBitmaps.addLast(bitmap);
+        mSize += size;
+        
+        // Recycle the oldest bitmaps until the pool fits
+        while (mSize > mMaxSize) {
+            Bitmap eldest = mBitmaps.removeFirst();
+            mSize -= sizeOf(eldest);
+            eldest.recycle();
+        }
+        return true;
+    }
+    
+    /**
+     * Remove and return a pooled bitmap with the given dimensions
+     * and config.
+     * 
+     * @return a reusable bitmap; null if none is available.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        for (Iterator<Bitmap> i = mBitmaps.iterator(); i.hasNext(); ) {
+            Bitmap bitmap = i.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                i.remove();
+                mSize -= sizeOf(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+    
+    /** Recycle every pooled bitmap. */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mSize = 0;
+    }
+    
+    /** Get the number of bytes used by the pooled bitmaps. */
+    public synchronized int size() {
+        return mSize;
+    }
+    
+    /** Get the maximum number of bytes the pooled bitmaps may use. */
+    public int maxSize() {
+        return mMaxSize;
+    }
+    
+    /**
+     * Get the number of bytes used by a bitmap. Bitmap.getByteCount()
+     * is not available before API level 12.
+     */
+    public static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,216 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * A collection of static methods for decoding {@link Bitmap} objects
+ * at the size they will be displayed.
+ * 
+ * @author Tristan Waddington
+ */
+public class BitmapUtils {
+    /** The first API level that supports BitmapFactory.Options#inBitmap. */
+    private static final int SDK_INT_IN_BITMAP = Build.VERSION_CODES.HONEYCOMB;
+    
+    /**
+     * The first API level that can reuse a bitmap for a subsampled decode.
+     * This is KITKAT, which is newer than our build target.
+     */
+    private static final int SDK_INT_IN_BITMAP_SAMPLED = 19;
+    
+    /**
+     * The number of bytes that may be read while probing the bounds of
+     * an image stream before it can no longer be reset.
+     */
+    public static final int STREAM_MARK_LIMIT = 64 * 1024;
+    
+    /**
+     * Calculate the largest power-of-two sample size that keeps both
+     * dimensions of the decoded image at least as large as the
+     * requested dimensions.
+     * 
+     * @param options the options populated by a bounds-only decode.
+     * @param reqWidth the requested width; 0 or less for any width.
+     * @param reqHeight the requested height; 0 or less for any height.
+     * @return the sample size to use.
+     */
+    public static int calculateInSampleSize(BitmapFactory.Options options,
+            int reqWidth, int reqHeight) {
+        int width = options.outWidth;
+        int height = options.outHeight;
+        int inSampleSize = 1;
+        
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return inSampleSize;
+        }
+        
+        while (true) {
+            int sampledWidth = width / (inSampleSize * 2);
+            int sampledHeight = height / (inSampleSize * 2);
+            if ((reqWidth > 0 && sampledWidth < reqWidth)
+                    || (reqHeight > 0 && sampledHeight < reqHeight)
+                    || sampledWidth == 0 || sampledHeight == 0) {
+                break;
+            }
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+    
+    /**
+     * <p>Decode an image file at roughly the requested dimensions. The
+     * bounds of the image are read first and the image is subsampled by
+     * the largest power of two that keeps it at least as large as the
+     * requested size.</p>
+     * 
+     * <p>If a {@link BitmapPool} is given, a pooled bitmap of the right
+     * size is decoded into when the platform allows it.</p>
+     * 
+     * @param path
+     * @param reqWidth the requested width; 0 or less for any width.
+     * @param reqHeight the requested height; 0 or less for any height.
+     * @param config the preferred bitmap config.
+     * @param pool a pool of reusable bitmaps; may be null.
+     * @return the decoded bitmap; null if the image could not be decoded.
+     */
+    public static Bitmap decodeSampledBitmap(String path, int reqWidth,
+            int reqHeight, Bitmap.Config config, BitmapPool pool) {
+        // Read the image bounds without allocating any pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        
+        prepareDecodeOptions(options, reqWidth, reqHeight, config, pool);
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (Build.VERSION.SDK_INT < SDK_INT_IN_BITMAP
+                    || options.inBitmap == null) {
+                throw e;
+            }
+            
+            // The pooled bitmap could not be reused after all
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+    
+    /**
+     * <p>Decode an image stream at roughly the requested dimensions, in
+     * a single pass over the stream. The stream is marked while the
+     * bounds of the image are read and then reset for the full decode,
+     * so it must support {@link InputStream#mark(int)} with a limit of
+     * at least {@link #STREAM_MARK_LIMIT}.</p>
+     * 
+     * <p>If the bounds could not be read within the mark limit an
+     * {@link IOException} is thrown, and the stream must not be decoded
+     * again. If a pooled bitmap could not be reused, an
+     * {@link IllegalArgumentException} is thrown. In either case the
+     * caller should fall back to decoding a complete copy of the image
+     * with {@link #decodeSampledBitmap(String, int, int, Bitmap.Config, BitmapPool)}.</p>
+     * 
+     * @param in a stream that supports mark and reset.
+     * @param reqWidth the requested width; 0 or less for any width.
+     * @param reqHeight the requested height; 0 or less for any height.
+     * @param config the preferred bitmap config.
+     * @param pool a pool of reusable bitmaps; may be null.
+     * @return the decoded bitmap; null if the image could not be decoded.
+     */
+    public static Bitmap decodeSampledBitmap(InputStream in, int reqWidth,
+            int reqHeight, Bitmap.Config config, BitmapPool pool) throws IOException {
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("The stream must support mark!");
+        }
+        
+        // Read the image bounds without allocating any pixels. The
+        // decoder may move our mark, so hide mark() from it.
+        in.mark(STREAM_MARK_LIMIT);
+        InputStream stream = new FixedMarkInputStream(in);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(stream, null, options);
+        in.reset();
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        
+        prepareDecodeOptions(options, reqWidth, reqHeight, config, pool);
+        try {
+            return BitmapFactory.decodeStream(stream, null, options);
+        } catch (IllegalArgumentException e) {
+            if (Build.VERSION.SDK_INT >= SDK_INT_IN_BITMAP
+                    && options.inBitmap != null) {
+                // The pooled bitmap could not be reused after all
+                pool.put(options.inBitmap);
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Prepare options populated by a bounds-only decode for decoding
+     * the full image at roughly the requested size.
+     */
+    private static void prepareDecodeOptions(BitmapFactory.Options options,
+            int reqWidth, int reqHeight, Bitmap.Config config, BitmapPool pool) {
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        if (Build.VERSION.SDK_INT >= SDK_INT_IN_BITMAP) {
+            // Mutable bitmaps can be pooled and decoded into later
+            options.inMutable = true;
+            addInBitmapOptions(options, config, pool);
+        }
+    }
+    
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} to a pooled bitmap that
+     * matches the decoded size of the image. Before KITKAT a bitmap can
+     * only be reused if the image is not subsampled.
+     */
+    private static void addInBitmapOptions(BitmapFactory.Options options,
+            Bitmap.Config config, BitmapPool pool) {
+        if (pool == null) {
+            return;
+        }
+        if (options.inSampleSize > 1
+                && Build.VERSION.SDK_INT < SDK_INT_IN_BITMAP_SAMPLED) {
+            return;
+        }
+        
+        int sampledWidth = (int) Math.ceil(
+                (double) options.outWidth / options.inSampleSize);
+        int sampledHeight = (int) Math.ceil(
+                (double) options.outHeight / options.inSampleSize);
+        Bitmap inBitmap = pool.get(sampledWidth, sampledHeight, config);
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
+        }
+    }
+    
+    /**
+     * A stream that ignores calls to {@link #mark(int)}. Some platform
+     * versions of {@link BitmapFactory} mark the stream with a small
+     * limit of their own, which would invalidate our mark.
+     */
+    private static class FixedMarkInputStream extends FilterInputStream {
+        public FixedMarkInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public void mark(int readlimit) {
+            // Pass
+        }
+    }
+}
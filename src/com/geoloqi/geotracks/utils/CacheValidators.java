@@ -0,0 +1,186 @@
+package com.geoloqi.geotracks.utils;
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.text.TextUtils;
+
+/**
+ * <p>The HTTP validators and freshness lifetime of a cached response.
+ * A cached file is served as-is until it expires; after that the
+ * validators are sent with a conditional request so the server can
+ * answer with 304 Not Modified instead of the full body.</p>
+ * 
+ * <p>Instances are immutable and can be stored as a JSON string
+ * with {@link #toString()} and restored with {@link #parse(String)}.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class CacheValidators {
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_EXPIRES = "expires";
+    
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_EXPIRES = "Expires";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    
+    /** The entity tag of the cached response; may be null. */
+    public final String etag;
+    
+    /** The Last-Modified header of the cached response; may be null. */
+    public final String lastModified;
+    
+    /** The time in milliseconds after which the response is stale. */
+    public final long expires;
+    
+    public CacheValidators(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+    
+    /**
+     * Read the validators and freshness lifetime from a response. The
+     * Cache-Control no-cache and max-age directives take precedence over
+     * the Expires header. If neither is present the default lifetime is used.
+     * 
+     * @param response
+     * @param now the current time in milliseconds.
+     * @param defaultTtl the lifetime in milliseconds to use when the
+     *        response does not specify one.
+     */
+    public static CacheValidators fromResponse(HttpResponse response,
+            long now, long defaultTtl) {
+        String etag = getHeaderValue(response, HEADER_ETAG);
+        String lastModified = getHeaderValue(response, HEADER_LAST_MODIFIED);
+        long expires = now + defaultTtl;
+        
+        String cacheControl = getHeaderValue(response, HEADER_CACHE_CONTROL);
+        String expiresHeader = getHeaderValue(response, HEADER_EXPIRES);
+        long maxAge = parseMaxAge(cacheControl);
+        if (cacheControl != null && (cacheControl.contains("no-cache")
+                || cacheControl.contains("no-store"))) {
+            // Always revalidate
+            expires = now;
+        } else if (maxAge >= 0) {
+            expires = now + maxAge * 1000;
+        } else if (expiresHeader != null) {
+            try {
+                Date date = DateUtils.parseDate(expiresHeader);
+                expires = date.getTime();
+            } catch (DateParseException e) {
+                // An invalid date means the response is already expired
+                expires = now;
+            }
+        }
+        return new CacheValidators(etag, lastModified, expires);
+    }
+    
+    /**
+     * Parse validators previously stored with {@link #toString()}.
+     * 
+     * @return the validators; null if the string could not be parsed.
+     */
+    public static CacheValidators parse(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(value);
+            return new CacheValidators(
+                    json.has(KEY_ETAG) ? json.getString(KEY_ETAG) : null,
+                    json.has(KEY_LAST_MODIFIED) ? json.getString(KEY_LAST_MODIFIED) : null,
+                    json.optLong(KEY_EXPIRES));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+    
+    /** Returns true if the cached response has not yet expired. */
+    public boolean isFresh(long now) {
+        return now < expires;
+    }
+    
+    /** Returns true if a conditional request can be made. */
+    public boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+    
+    /** Add the conditional request headers for these validators. */
+    public void addConditionalHeaders(HttpRequest request) {
+        if (etag != null) {
+            request.addHeader(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            request.addHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+    
+    /**
+     * Combine these validators with those of a 304 Not Modified
+     * response. The server may omit unchanged validators, so ours are
+     * kept unless the response replaces them.
+     */
+    public CacheValidators update(CacheValidators notModified) {
+        return new CacheValidators(
+                notModified.etag != null ? notModified.etag : etag,
+                notModified.lastModified != null ? notModified.lastModified : lastModified,
+                notModified.expires);
+    }
+    
+    @Override
+    public String toString() {
+        JSONObject json = new JSONObject();
+        try {
+            if (etag != null) {
+                json.put(KEY_ETAG, etag);
+            }
+            if (lastModified != null) {
+                json.put(KEY_LAST_MODIFIED, lastModified);
+            }
+            json.put(KEY_EXPIRES, expires);
+        } catch (JSONException e) {
+            // Pass
+        }
+        return json.toString();
+    }
+    
+    /** Get the value of the first header with the given name or null. */
+    private static String getHeaderValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+    
+    /**
+     * Get the max-age directive from a Cache-Control header in seconds.
+     * 
+     * @return the max-age; -1 if it is not present.
+     */
+    private static long parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.startsWith("max-age=")) {
+                try {
+                    return Long.parseLong(directive.substring(8).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,753 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * <p>A size-bounded cache of files on disk. Each entry is a single
+ * file in the cache directory named after its key. Entries are evicted
+ * in least-recently-used order once the total size of the cache
+ * exceeds its configured maximum.</p>
+ * 
+ * <p>All operations are recorded to a journal file which is read once
+ * when the cache is opened. This means the cache never has to walk or
+ * stat the contents of its directory to find an entry. New values are
+ * written to a temporary file and only become visible when the edit
+ * is committed. Temporary files that were left behind by a crash are
+ * removed the next time the cache is opened.</p>
+ * 
+ * <p>Each entry may also carry a short metadata string, such as the
+ * HTTP validators of a downloaded file, which is stored in the journal.</p>
+ * 
+ * <p>The journal is a simple line based format:</p>
+ * <pre>
+ *     com.geoloqi.geotracks.DiskLruCache
+ *     1
+ * 
+ *     DIRTY 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832
+ *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 %7B%22etag%22%3A%22abc%22%7D
+ *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *     REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ * </pre>
+ * 
+ * @author Tristan Waddington
+ */
+public class DiskLruCache {
+    private static final String TAG = "DiskLruCache";
+    
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "com.geoloqi.geotracks.DiskLruCache";
+    static final String VERSION = "1";
+    
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    
+    /** The suffix used for entries that are being written. */
+    private static final String DIRTY_SUFFIX = ".tmp";
+    
+    /** The charset used to encode entry metadata in the journal. */
+    private static final String METADATA_CHARSET = "UTF-8";
+    
+    /** The pattern all cache keys must match. */
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
+    
+    /**
+     * The number of redundant journal operations that may accumulate
+     * before the journal is rebuilt.
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private final long mMaxSize;
+    
+    /** The entries in the cache, in access order. */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    
+    /** The total size of all readable entries in bytes. */
+    private long mSize = 0;
+    
+    /** The number of journal lines that no longer describe an entry. */
+    private int mRedundantOpCount;
+    
+    private Writer mJournalWriter;
+    
+    private DiskLruCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        mMaxSize = maxSize;
+    }
+    
+    /**
+     * Open the cache in the given directory, creating it if it does not
+     * already exist. Journal lines that were cut off or damaged, usually
+     * by a crash during an append, are skipped. If the journal header is
+     * corrupt the contents of the directory are discarded and an empty
+     * cache is returned.
+     * 
+     * @param directory
+     * @param maxSize the maximum number of bytes this cache should use.
+     * @return an open cache.
+     * @throws IOException if the cache directory could not be written.
+     */
+    public static DiskLruCache open(File directory, long maxSize)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        
+        DiskLruCache cache = new DiskLruCache(directory, maxSize);
+        if (cache.mJournalFile.exists()) {
+            try {
+                boolean intact = cache.readJournal();
+                cache.processJournal();
+                if (intact) {
+                    cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(cache.mJournalFile, true), "US-ASCII"),
+                            FileUtils.BUFFER_SIZE);
+                } else {
+                    // Replace the damaged lines before appending to the journal
+                    cache.rebuildJournal();
+                }
+                return cache;
+            } catch (IOException e) {
+                Log.w(TAG, String.format(
+                        "Journal for '%s' is corrupt, removing!", directory), e);
+                cache.delete();
+            }
+        }
+        
+        // Create a new empty cache
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format(
+                    "Failed to create cache directory '%s'!", directory));
+        }
+        cache = new DiskLruCache(directory, maxSize);
+        cache.rebuildJournal();
+        return cache;
+    }
+    
+    /**
+     * Get the file for the entry named key, or null if it does not exist
+     * or is currently being created. The returned file should be treated
+     * as read-only.
+     */
+    public synchronized File get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+        
+        File file = entry.getCleanFile();
+        if (!file.exists()) {
+            // The file was removed behind our back
+            removeEntry(entry);
+            return null;
+        }
+        
+        mRedundantOpCount++;
+        mJournalWriter.append(READ + ' ' + key + '\n');
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+        return file;
+    }
+    
+    /**
+     * Get an {@link Editor} for the entry named key, or null if another
+     * edit is already in progress for the same entry.
+     */
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        } else if (entry.currentEditor != null) {
+            // Another edit is in progress
+            return null;
+        }
+        
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+        
+        // Flush the journal before creating files to prevent leaks
+        mJournalWriter.write(DIRTY + ' ' + key + '\n');
+        mJournalWriter.flush();
+        return editor;
+    }
+    
+    /**
+     * Get the metadata stored with the entry named key.
+     * 
+     * @return the metadata; null if there is no readable entry or it
+     *         has no metadata.
+     */
+    public synchronized String getMetadata(String key) {
+        checkNotClosed();
+        validateKey(key);
+        
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+        return entry.metadata;
+    }
+    
+    /**
+     * Replace the metadata stored with the entry named key without
+     * rewriting its value.
+     * 
+     * @return true if the metadata was updated; false if there is no
+     *         readable entry or the entry is being edited.
+     */
+    public synchronized boolean setMetadata(String key, String metadata)
+            throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.readable || entry.currentEditor != null) {
+            return false;
+        }
+        
+        entry.metadata = metadata;
+        mRedundantOpCount++;
+        mJournalWriter.write(getCleanLine(entry));
+        mJournalWriter.flush();
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+        return true;
+    }
+    
+    /**
+     * Drop the entry named key if it exists and is not being edited.
+     * 
+     * @return true if an entry was removed.
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+    
+    /**
+     * <p>Remove every entry that is not being edited. Entries are removed
+     * one at a time, so readers and writers on other threads are only
+     * blocked briefly and the journal stays consistent throughout.</p>
+     * 
+     * <p>If the current thread is interrupted the purge stops and an
+     * {@link InterruptedIOException} is thrown. Entries that were already
+     * removed stay removed.</p>
+     */
+    public void evictAll() throws IOException {
+        List<String> keys;
+        synchronized (this) {
+            checkNotClosed();
+            keys = new ArrayList<String>(mEntries.keySet());
+        }
+        
+        for (String key : keys) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Purge cancelled");
+            }
+            remove(key);
+        }
+    }
+    
+    /** Get the directory where this cache stores its data. */
+    public File getDirectory() {
+        return mDirectory;
+    }
+    
+    /** Get the maximum number of bytes this cache should use. */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    /**
+     * Get the number of bytes currently used to store the values in
+     * this cache. This may be greater than the max size if an edit
+     * was just committed. The size is kept up to date as entries are
+     * written and removed, so this never touches the file system.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+    
+    /** Returns true if this cache has been closed. */
+    public synchronized boolean isClosed() {
+        return mJournalWriter == null;
+    }
+    
+    /** Force buffered journal operations to the file system. */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        trimToSize();
+        mJournalWriter.flush();
+    }
+    
+    /** Close this cache. Stored values will remain on the file system. */
+    public synchronized void close() throws IOException {
+        if (mJournalWriter == null) {
+            return;
+        }
+        
+        // Abort any edits that are still in progress
+        for (Entry entry : new ArrayList<Entry>(mEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        mJournalWriter.close();
+        mJournalWriter = null;
+    }
+    
+    /**
+     * Close the cache and delete all of its stored values, including any
+     * files in the cache directory that were not created by the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        FileUtils.deleteDirectory(mDirectory);
+    }
+    
+    /**
+     * Read the entries recorded in the journal into memory. A line that
+     * is not terminated or cannot be parsed is skipped.
+     * 
+     * @return true if every line of the journal was read.
+     * @throws IOException if the journal header is corrupt.
+     */
+    private boolean readJournal() throws IOException {
+        boolean terminated = endsWithNewline(mJournalFile);
+        boolean intact = true;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournalFile), "US-ASCII"), FileUtils.BUFFER_SIZE);
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version)
+                    || !"".equals(blank)) {
+                throw new IOException(String.format(
+                        "Unexpected journal header: [%s, %s, %s]",
+                        magic, version, blank));
+            }
+            
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && !terminated) {
+                    // The last append was cut off part way through
+                    Log.w(TAG, String.format("Skipping partial journal line: %s", line));
+                    intact = false;
+                    break;
+                }
+                
+                try {
+                    readJournalLine(line);
+                    lineCount++;
+                } catch (IOException e) {
+                    Log.w(TAG, "Skipping journal line!", e);
+                    intact = false;
+                }
+                line = next;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } finally {
+            reader.close();
+        }
+        return intact;
+    }
+    
+    /** Returns true if the last byte of a file is a newline. */
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return false;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Apply a single journal operation to the in-memory entries. Every
+     * field is checked before any entry is touched, so a malformed line
+     * changes nothing.
+     */
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2 || !KEY_PATTERN.matcher(parts[1]).matches()) {
+            throw new IOException(String.format(
+                    "Unexpected journal line: %s", line));
+        }
+        
+        String op = parts[0];
+        String key = parts[1];
+        if (REMOVE.equals(op) && parts.length == 2) {
+            mEntries.remove(key);
+        } else if (CLEAN.equals(op) && (parts.length == 3 || parts.length == 4)) {
+            long length;
+            String metadata;
+            try {
+                length = Long.parseLong(parts[2]);
+                metadata = parts.length == 4
+                        ? URLDecoder.decode(parts[3], METADATA_CHARSET) : null;
+            } catch (IllegalArgumentException e) {
+                throw new IOException(String.format(
+                        "Unexpected journal line: %s", line));
+            }
+            if (length < 0) {
+                throw new IOException(String.format(
+                        "Unexpected journal line: %s", line));
+            }
+            
+            Entry entry = getOrCreateEntry(key);
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.length = length;
+            entry.metadata = metadata;
+        } else if (DIRTY.equals(op) && parts.length == 2) {
+            Entry entry = getOrCreateEntry(key);
+            entry.currentEditor = new Editor(entry);
+        } else if (READ.equals(op) && parts.length == 2) {
+            // Only the access order matters, and a read of an unknown
+            // key has nothing to reorder
+            mEntries.get(key);
+        } else {
+            throw new IOException(String.format(
+                    "Unexpected journal line: %s", line));
+        }
+    }
+    
+    private Entry getOrCreateEntry(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+    
+    /**
+     * Compute the initial size and discard any entries that were left
+     * in an inconsistent state when the process last ended.
+     */
+    private void processJournal() {
+        deleteIfExists(mJournalFileTmp);
+        for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor == null && entry.readable) {
+                mSize += entry.length;
+            } else if (entry.currentEditor == null) {
+                // Never published and not being written; nothing to keep
+                deleteIfExists(entry.getCleanFile());
+                i.remove();
+            } else {
+                // A write was interrupted; throw away the partial value
+                entry.currentEditor = null;
+                deleteIfExists(entry.getCleanFile());
+                deleteIfExists(entry.getDirtyFile());
+                i.remove();
+            }
+        }
+    }
+    
+    /**
+     * Write a new journal that omits redundant information. This replaces
+     * the current journal if it exists.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+        
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFileTmp), "US-ASCII"),
+                FileUtils.BUFFER_SIZE);
+        try {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            
+            for (Entry entry : mEntries.values()) {
+                if (entry.currentEditor != null) {
+                    writer.write(DIRTY + ' ' + entry.key + '\n');
+                } else {
+                    writer.write(getCleanLine(entry));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException(String.format(
+                    "Failed to replace journal '%s'!", mJournalFile));
+        }
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFile, true), "US-ASCII"),
+                FileUtils.BUFFER_SIZE);
+        mRedundantOpCount = 0;
+    }
+    
+    /** Publish or discard the value written by an {@link Editor}. */
+    private synchronized void completeEdit(Editor editor, boolean success)
+            throws IOException {
+        Entry entry = editor.mEntry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+        
+        File dirty = entry.getDirtyFile();
+        if (success && dirty.exists()) {
+            File clean = entry.getCleanFile();
+            if (!dirty.renameTo(clean)) {
+                deleteIfExists(dirty);
+                success = false;
+            } else {
+                long oldLength = entry.readable ? entry.length : 0;
+                entry.length = clean.length();
+                mSize = mSize - oldLength + entry.length;
+            }
+        } else {
+            deleteIfExists(dirty);
+            success = false;
+        }
+        
+        mRedundantOpCount++;
+        entry.currentEditor = null;
+        if (success) {
+            entry.readable = true;
+            entry.metadata = editor.mMetadata;
+            mJournalWriter.write(getCleanLine(entry));
+        } else if (!entry.readable) {
+            mEntries.remove(entry.key);
+            mJournalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        }
+        mJournalWriter.flush();
+        
+        trimToSize();
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+    }
+    
+    /** Get the journal line that records a readable entry. */
+    private static String getCleanLine(Entry entry) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(CLEAN).append(' ').append(entry.key).append(' ')
+                .append(entry.length);
+        if (entry.metadata != null) {
+            try {
+                line.append(' ').append(URLEncoder.encode(
+                        entry.metadata, METADATA_CHARSET));
+            } catch (UnsupportedEncodingException e) {
+                throw new IOException(e.toString());
+            }
+        }
+        return line.append('\n').toString();
+    }
+    
+    /** Delete an entry and its value, recording the removal. */
+    private void removeEntry(Entry entry) throws IOException {
+        deleteIfExists(entry.getCleanFile());
+        if (entry.readable) {
+            mSize -= entry.length;
+        }
+        
+        mRedundantOpCount++;
+        mEntries.remove(entry.key);
+        mJournalWriter.append(REMOVE + ' ' + entry.key + '\n');
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+    }
+    
+    /** Evict least-recently-used entries until the cache fits. */
+    private void trimToSize() throws IOException {
+        Iterator<Map.Entry<String, Entry>> i = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && i.hasNext()) {
+            Entry entry = i.next().getValue();
+            if (entry.currentEditor != null || !entry.readable) {
+                continue;
+            }
+            
+            deleteIfExists(entry.getCleanFile());
+            mSize -= entry.length;
+            mRedundantOpCount++;
+            i.remove();
+            mJournalWriter.append(REMOVE + ' ' + entry.key + '\n');
+        }
+    }
+    
+    /**
+     * We only rebuild the journal when it will halve the size of
+     * the journal and eliminate at least 2000 operations.
+     */
+    private boolean journalRebuildRequired() {
+        return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size();
+    }
+    
+    private void checkNotClosed() {
+        if (mJournalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+    
+    private static void validateKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException(String.format(
+                    "Keys must match %s: \"%s\"", KEY_PATTERN, key));
+        }
+    }
+    
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, String.format("Failed to delete '%s'!", file));
+        }
+    }
+    
+    /**
+     * Edits the value of a cache entry. The value is written to a
+     * temporary file and published when {@link #commit()} is called.
+     * 
+     * @author Tristan Waddington
+     */
+    public final class Editor {
+        private final Entry mEntry;
+        private String mMetadata;
+        private boolean mDone;
+        
+        private Editor(Entry entry) {
+            mEntry = entry;
+            mMetadata = entry.metadata;
+        }
+        
+        /** Get the cache key this editor is writing. */
+        public String getKey() {
+            return mEntry.key;
+        }
+        
+        /**
+         * Get the temporary file that the new value should be written
+         * to. The file is not visible to readers until committed.
+         */
+        public File getFile() {
+            return mEntry.getDirtyFile();
+        }
+        
+        /**
+         * Set the metadata to store with the new value. By default the
+         * metadata of the existing value is kept.
+         */
+        public void setMetadata(String metadata) {
+            mMetadata = metadata;
+        }
+        
+        /** Open an {@link OutputStream} to the temporary file. */
+        public OutputStream newOutputStream() throws FileNotFoundException {
+            return new FileOutputStream(getFile());
+        }
+        
+        /**
+         * Publish the written value, making it visible to readers. If
+         * nothing was written the edit is aborted.
+         */
+        public void commit() throws IOException {
+            if (!mDone) {
+                mDone = true;
+                completeEdit(this, true);
+            }
+        }
+        
+        /** Discard the written value and release the edit lock. */
+        public void abort() throws IOException {
+            if (!mDone) {
+                mDone = true;
+                completeEdit(this, false);
+            }
+        }
+    }
+    
+    /** The in-memory state of a single cache entry. */
+    private final class Entry {
+        private final String key;
+        
+        /** The length of the clean file in bytes. */
+        private long length;
+        
+        /** True if this entry has ever been published. */
+        private boolean readable;
+        
+        /** The metadata stored with the published value; may be null. */
+        private String metadata;
+        
+        /** The ongoing edit or null if this entry is not being edited. */
+        private Editor currentEditor;
+        
+        private Entry(String key) {
+            this.key = key;
+        }
+        
+        public File getCleanFile() {
+            return new File(mDirectory, key);
+        }
+        
+        public File getDirtyFile() {
+            return new File(mDirectory, key + DIRTY_SUFFIX);
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package com.geoloqi.geotracks.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
@@ -29,10 +39,36 @@ public class FileUtils {
     /** The buffer size to use when reading or writing files to disk. */
     public static final int BUFFER_SIZE = (32 * 1024);
     
+    /** The suffix appended to files that are still being written. */
+    public static final String TMP_SUFFIX = ".tmp";
+    
+    /**
+     * A buffer for each thread that copies streams to disk, so a copy
+     * does not allocate a new one every time.
+     */
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+    
+    /**
+     * A direct buffer for each thread that copies channels to disk.
+     * Direct buffers are expensive to allocate, so they are reused.
+     */
+    private static final ThreadLocal<ByteBuffer> sDirectBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+    
     /**
      * Calculates the size of the given {@link File} in bytes. If the
-     * given File is a directory, the method will recurse over all
-     * children and return the total size of the directory.
+     * given File is a directory, the method will walk all of its
+     * children and return the total size of the directory. The walk is
+     * iterative, so deep trees can't overflow the stack.
      * 
      * @param path
      * @return The total size in bytes.
@@ -41,18 +77,16 @@ public class FileUtils {
         long size = 0;
         
         if (path != null) {
-            size += path.length();
-            
-            if (path.isDirectory()) {
-                String[] children = path.list();
-                for (String child : children) {
-                    File file = new File(path, child);
-                    
-                    if (file.isDirectory()) {
-                        // Recurse
-                        size += sizeOf(file);
-                    } else {
-                        size += file.length();
+            LinkedList<File> pending = new LinkedList<File>();
+            pending.add(path);
+            while (!pending.isEmpty()) {
+                File file = pending.removeLast();
+                size += file.length();
+                
+                File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        pending.add(child);
                     }
                 }
             }
@@ -60,6 +94,53 @@ public class FileUtils {
         return size;
     }
     
+    /**
+     * Calculates the size of the given directory in bytes, walking each
+     * of its sub-directories as a separate task on the given executor.
+     * This is faster than {@link #sizeOf(File)} for large trees on
+     * storage that can serve several requests at once.
+     * 
+     * @param dir
+     * @param executor the executor to walk sub-directories on.
+     * @return The total size in bytes; -1 if the thread was interrupted.
+     */
+    public static long sizeOf(File dir, ExecutorService executor) {
+        File[] children = dir != null ? dir.listFiles() : null;
+        if (children == null) {
+            return sizeOf(dir);
+        }
+        
+        long size = dir.length();
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return sizeOf(child);
+                    }
+                }));
+            } else {
+                size += child.length();
+            }
+        }
+        
+        try {
+            for (Future<Long> future : futures) {
+                size += future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return size;
+    }
+    
     /**
      * Takes a file size in bytes and returns a human-readable
      * String indicating the size in one of KB, MB or GB.
@@ -81,26 +162,46 @@ public class FileUtils {
     }
     
     /**
-     * Empty a directory, recursively deleting all children.
+     * <p>Empty a directory, deleting all children. The walk is
+     * iterative, so deep trees can't overflow the stack.</p>
+     * 
+     * <p>The purge stops early if the current thread is interrupted,
+     * which lets a long purge on a background thread be cancelled.
+     * Whatever was already deleted stays deleted.</p>
      * 
      * @param dir
      * @return true if the directory was emptied; false if otherwise.
      */
     public static boolean emptyDirectory(File dir) {
-        if (dir.isDirectory()) {
-            for (String child : dir.list()) {
-                File file = new File(dir, child);
-                if (file.isDirectory()) {
-                    // Delete the directory
-                    deleteDirectory(file);
-                } else {
-                    // Delete file
-                    file.delete();
-                }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return false;
+        }
+        
+        // Delete files as we find them and directories once empty
+        LinkedList<File> pending = new LinkedList<File>();
+        ArrayList<File> directories = new ArrayList<File>();
+        Collections.addAll(pending, children);
+        while (!pending.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            
+            File file = pending.removeLast();
+            File[] grandchildren = file.listFiles();
+            if (grandchildren != null) {
+                directories.add(file);
+                Collections.addAll(pending, grandchildren);
+            } else {
+                file.delete();
             }
-            return true;
         }
-        return false;
+        
+        // Children were found after their parents, so delete in reverse
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            directories.get(i).delete();
+        }
+        return true;
     }
     
     /**
@@ -120,8 +221,12 @@ public class FileUtils {
     }
     
     /**
-     * <p>Takes an {@link InputStream}, wraps it with a
-     * {@link BufferedInputStream} and writes the bytes to disk.</p>
+     * <p>Write the contents of an {@link InputStream} to disk.</p>
+     * 
+     * <p>The bytes are written to a temporary file next to the
+     * destination, which is renamed into place only once the whole
+     * stream has been written. A failed write never leaves a truncated
+     * file behind at the destination.</p>
      * 
      * <p>Note that this method will close the given InputStream when
      * finished.</p>
@@ -132,23 +237,198 @@ public class FileUtils {
      */
     public static File writeFileToDisk(File file, InputStream inputStream) throws
             FileNotFoundException, IOException {
-        // Create our buffered streams
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                inputStream, BUFFER_SIZE);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(
-                new FileOutputStream(file), BUFFER_SIZE);
+        return writeFileToDisk(file, inputStream, false);
+    }
+    
+    /**
+     * <p>Write the contents of an {@link InputStream} to disk. Bytes are
+     * read straight into a buffer that is reused by the calling thread
+     * and written from there, rather than through layers of buffered
+     * streams and a new buffer per call. A {@link FileInputStream} is
+     * copied through its channel instead; see
+     * {@link #writeFileToDisk(File, ReadableByteChannel, boolean)}.</p>
+     * 
+     * <p>A plain stream is not wrapped in a channel, since the wrapper
+     * reads into its own array and copies that into the direct buffer.
+     * See FileUtilsBenchmark under tests/jvm for the numbers.</p>
+     * 
+     * <p>The bytes are written to a temporary file next to the
+     * destination, which is renamed into place only once the whole
+     * stream has been written. A failed write never leaves a truncated
+     * file behind at the destination.</p>
+     * 
+     * <p>Note that this method will close the given InputStream when
+     * finished.</p>
+     * 
+     * @param file
+     * @param inputStream
+     * @param sync true to flush the file to the storage device before
+     *        it is moved into place. This is slow on most flash storage.
+     * @return the File that was written to.
+     */
+    public static File writeFileToDisk(File file, InputStream inputStream,
+            boolean sync) throws FileNotFoundException, IOException {
+        if (inputStream instanceof FileInputStream) {
+            return writeFileToDisk(file, ((FileInputStream) inputStream).getChannel(), sync);
+        }
+        
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        boolean success = false;
         
         try {
-            // Write the file to disk
-            int lengthRead = 0;
-            byte [] buffer = new byte[BUFFER_SIZE];
-            while ((lengthRead = bufferedInputStream.read(buffer)) != -1) {
-                bufferedOutputStream.write(buffer, 0, lengthRead);
+            FileOutputStream outputStream = new FileOutputStream(tmpFile);
+            try {
+                byte[] buffer = sBuffers.get();
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, count);
+                }
+                if (sync) {
+                    outputStream.getFD().sync();
+                }
+            } finally {
+                outputStream.close();
             }
+            
+            moveIntoPlace(tmpFile, file);
+            success = true;
         } finally {
-            bufferedInputStream.close();
-            bufferedOutputStream.close();
+            inputStream.close();
+            if (!success) {
+                tmpFile.delete();
+            }
         }
         return file;
     }
+    
+    /**
+     * <p>Write the contents of a channel to disk through a
+     * {@link FileChannel}. A {@link FileChannel} source is copied with
+     * {@link FileChannel#transferTo}, which lets the platform move the
+     * bytes without copying them into the process. Any other channel is
+     * read into a direct buffer that is reused by the calling thread,
+     * so the bytes are never copied onto the Java heap.</p>
+     * 
+     * <p>The bytes are written to a temporary file next to the
+     * destination and renamed into place once complete.</p>
+     * 
+     * <p>Note that this method will close the given channel when
+     * finished.</p>
+     * 
+     * @param file
+     * @param source
+     * @param sync true to flush the file to the storage device before
+     *        it is moved into place.
+     * @return the File that was written to.
+     */
+    public static File writeFileToDisk(File file, ReadableByteChannel source,
+            boolean sync) throws FileNotFoundException, IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        boolean success = false;
+        
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tmpFile);
+            try {
+                FileChannel target = outputStream.getChannel();
+                if (source instanceof FileChannel) {
+                    // Copy from wherever the source has been read up to
+                    FileChannel fileChannel = (FileChannel) source;
+                    long position = fileChannel.position();
+                    long size = fileChannel.size();
+                    while (position < size) {
+                        long count = fileChannel.transferTo(position, size - position, target);
+                        if (count <= 0) {
+                            // The source was truncated while we were copying
+                            break;
+                        }
+                        position += count;
+                    }
+                } else {
+                    ByteBuffer buffer = sDirectBuffers.get();
+                    buffer.clear();
+                    while (source.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            target.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
+                if (sync) {
+                    target.force(true);
+                }
+            } finally {
+                outputStream.close();
+            }
+            
+            moveIntoPlace(tmpFile, file);
+            success = true;
+        } finally {
+            source.close();
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        return file;
+    }
+    
+    /**
+     * <p>Copy a file using {@link FileChannel#transferTo}, which lets the
+     * platform move the bytes without copying them into the process.</p>
+     * 
+     * <p>The copy is written to a temporary file next to the destination
+     * and renamed into place once complete.</p>
+     * 
+     * @param source
+     * @param file the destination.
+     * @param sync true to flush the copy to the storage device before
+     *        it is moved into place.
+     * @return the File that was written to.
+     */
+    public static File copyFile(File source, File file, boolean sync) throws
+            FileNotFoundException, IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        boolean success = false;
+        
+        FileInputStream inputStream = new FileInputStream(source);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tmpFile);
+            try {
+                FileChannel in = inputStream.getChannel();
+                FileChannel out = outputStream.getChannel();
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long count = in.transferTo(position, size - position, out);
+                    if (count <= 0) {
+                        // The source was truncated while we were copying
+                        break;
+                    }
+                    position += count;
+                }
+                if (sync) {
+                    out.force(true);
+                }
+            } finally {
+                outputStream.close();
+            }
+            
+            moveIntoPlace(tmpFile, file);
+            success = true;
+        } finally {
+            inputStream.close();
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        return file;
+    }
+    
+    /** Rename a completely written temporary file to its destination. */
+    private static void moveIntoPlace(File tmpFile, File file) throws IOException {
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException(String.format(
+                    "Failed to rename '%s' to '%s'!", tmpFile, file));
+        }
+    }
 }
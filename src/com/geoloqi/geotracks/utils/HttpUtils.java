@@ -0,0 +1,216 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A collection of static methods for creating and configuring
+ * HTTP clients.
+ * 
+ * @author Tristan Waddington
+ */
+public class HttpUtils {
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+    
+    /**
+     * How long an idle connection is kept alive when the server does not
+     * send a Keep-Alive timeout, in milliseconds.
+     */
+    public static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+    
+    /**
+     * How long a request waits for a free pooled connection by default,
+     * in milliseconds.
+     */
+    public static final long DEFAULT_POOL_TIMEOUT = 60 * 1000;
+    
+    /**
+     * Create a pooled client that waits up to {@link #DEFAULT_POOL_TIMEOUT}
+     * for a free connection.
+     * 
+     * @see #newPooledHttpClient(int, int, int, int, long)
+     */
+    public static DefaultHttpClient newPooledHttpClient(int maxConnections,
+            int maxConnectionsPerHost, int connectTimeout, int socketTimeout) {
+        return newPooledHttpClient(maxConnections, maxConnectionsPerHost,
+                connectTimeout, socketTimeout, DEFAULT_POOL_TIMEOUT);
+    }
+    
+    /**
+     * <p>Create a {@link DefaultHttpClient} backed by a thread-safe pool of
+     * persistent connections. The client can be shared by any number of
+     * threads, reuses connections to the same host and transparently
+     * accepts gzip encoded responses.</p>
+     * 
+     * <p>Response entities must be fully consumed or their content
+     * stream closed to return a connection to the pool.</p>
+     * 
+     * @param maxConnections the maximum number of open connections.
+     * @param maxConnectionsPerHost the maximum number of open connections
+     *        to a single host.
+     * @param connectTimeout the connection timeout in milliseconds.
+     * @param socketTimeout the socket read timeout in milliseconds.
+     * @param poolTimeout how long to wait for a free pooled connection
+     *        in milliseconds. Size the pool so this only happens when
+     *        more threads share the client than it has connections.
+     * @return a new client.
+     */
+    public static DefaultHttpClient newPooledHttpClient(int maxConnections,
+            int maxConnectionsPerHost, int connectTimeout, int socketTimeout,
+            long poolTimeout) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setSocketBufferSize(params, FileUtils.BUFFER_SIZE);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        
+        // Bound the connection pool
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setTimeout(params, poolTimeout);
+        
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http",
+                PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https",
+                SSLSocketFactory.getSocketFactory(), 443));
+        
+        ClientConnectionManager manager =
+                new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.setKeepAliveStrategy(new KeepAliveStrategy());
+        client.setReuseStrategy(new ReuseStrategy());
+        client.addRequestInterceptor(new GzipRequestInterceptor());
+        client.addResponseInterceptor(new GzipResponseInterceptor());
+        return client;
+    }
+    
+    /**
+     * Keep idle connections for as long as the server allows, or for
+     * {@link #DEFAULT_KEEP_ALIVE} if it does not say.
+     */
+    private static class KeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : DEFAULT_KEEP_ALIVE;
+        }
+    }
+    
+    /**
+     * Decide whether to reuse a connection by the entity the server sent.
+     * An inflated gzip entity has no length, which would otherwise close
+     * the connection after every gzip encoded response.
+     */
+    private static class ReuseStrategy extends DefaultConnectionReuseStrategy {
+        @Override
+        public boolean keepAlive(HttpResponse response, HttpContext context) {
+            HttpEntity entity = response.getEntity();
+            if (!(entity instanceof GzipDecompressingEntity)) {
+                return super.keepAlive(response, context);
+            }
+            
+            response.setEntity(((GzipDecompressingEntity) entity).getEncodedEntity());
+            try {
+                return super.keepAlive(response, context);
+            } finally {
+                response.setEntity(entity);
+            }
+        }
+    }
+    
+    /** Advertise gzip support on every request. */
+    private static class GzipRequestInterceptor implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context)
+                throws HttpException, IOException {
+            if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+            }
+        }
+    }
+    
+    /** Unwrap gzip encoded response entities. */
+    private static class GzipResponseInterceptor implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context)
+                throws HttpException, IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+            
+            Header encoding = entity.getContentEncoding();
+            if (encoding != null) {
+                for (HeaderElement element : encoding.getElements()) {
+                    if (element.getName().equalsIgnoreCase(ENCODING_GZIP)) {
+                        response.setEntity(new GzipDecompressingEntity(entity));
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * An {@link HttpEntityWrapper} that inflates the content of a
+     * gzip encoded entity. The length of the inflated content is
+     * not known.
+     */
+    private static class GzipDecompressingEntity extends HttpEntityWrapper {
+        public GzipDecompressingEntity(HttpEntity entity) {
+            super(entity);
+        }
+        
+        /** @return the entity as the server sent it. */
+        public HttpEntity getEncodedEntity() {
+            return wrappedEntity;
+        }
+        
+        @Override
+        public InputStream getContent() throws IOException {
+            return new GZIPInputStream(wrappedEntity.getContent());
+        }
+        
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+        
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+    }
+}
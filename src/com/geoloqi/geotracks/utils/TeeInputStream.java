@@ -0,0 +1,125 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>An {@link InputStream} that copies every byte read from the
+ * wrapped stream to an {@link OutputStream}. This lets a single pass
+ * over a network stream both fill a cache file and feed a decoder.</p>
+ * 
+ * <p>A failure writing to the output does not interrupt the reader.
+ * Writing stops and {@link #hasOutputFailed()} returns true, so the
+ * caller can discard the incomplete copy. Marking is not supported;
+ * wrap this stream in a {@link java.io.BufferedInputStream} so that
+ * bytes read again after a reset are not copied twice.</p>
+ * 
+ * <p>Closing this stream closes the input but not the output.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class TeeInputStream extends FilterInputStream {
+    private final OutputStream mOutput;
+    private long mCount;
+    private IOException mOutputException;
+    
+    public TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        mOutput = out;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            mCount++;
+            if (mOutputException == null) {
+                try {
+                    mOutput.write(b);
+                } catch (IOException e) {
+                    mOutputException = e;
+                }
+            }
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            mCount += read;
+            if (mOutputException == null) {
+                try {
+                    mOutput.write(buffer, offset, read);
+                } catch (IOException e) {
+                    mOutputException = e;
+                }
+            }
+        }
+        return read;
+    }
+    
+    @Override
+    public long skip(long count) throws IOException {
+        // Skipped bytes must still be copied
+        byte[] buffer = new byte[(int) Math.min(count, FileUtils.BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readlimit) {
+        // Pass
+    }
+    
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+    
+    /**
+     * Read the rest of the input so that all of it is copied to the
+     * output.
+     * 
+     * @return the number of bytes read.
+     */
+    public long drain() throws IOException {
+        byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = read(buffer, 0, buffer.length)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+    
+    /** Get the number of bytes read from the input so far. */
+    public long getCount() {
+        return mCount;
+    }
+    
+    /** Returns true if writing to the output failed. */
+    public boolean hasOutputFailed() {
+        return mOutputException != null;
+    }
+    
+    /** Get the error that stopped the copy; null if there was none. */
+    public IOException getOutputException() {
+        return mOutputException;
+    }
+}
@@ -0,0 +1,162 @@
+package com.geoloqi.geotracks.widget;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import android.database.Cursor;
+import android.widget.SectionIndexer;
+
+/**
+ * <p>A {@link SectionIndexer} that groups the rows of a cursor sorted
+ * newest first by the date in one of its columns. The last week is
+ * grouped by day, the weeks before that by week and anything older
+ * by month, so long histories stay quick to navigate.</p>
+ * 
+ * <p>The sections are computed once when the indexer is built. Looking
+ * up the section of a position is a binary search.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class DateSectionIndexer implements SectionIndexer {
+    /** The number of days, including today, that get their own section. */
+    private static final int DAY_SECTIONS = 7;
+    
+    /** The number of weeks before that which get their own section. */
+    private static final int WEEK_SECTIONS = 8;
+    
+    /** An indexer with no sections. */
+    public static final DateSectionIndexer EMPTY =
+            new DateSectionIndexer(new String[0], new int[0]);
+    
+    private final String[] mSections;
+    private final int[] mPositions;
+    
+    private DateSectionIndexer(String[] sections, int[] positions) {
+        mSections = sections;
+        mPositions = positions;
+    }
+    
+    /**
+     * Build the sections for a cursor. The cursor must be sorted by the
+     * date column in descending order. Its position is restored.
+     * 
+     * @param cursor
+     * @param dateColumn the index of a column holding milliseconds.
+     * @param now the current time in milliseconds.
+     * @param todayLabel the label of the section for today.
+     * @return a new indexer.
+     */
+    public static DateSectionIndexer fromCursor(Cursor cursor, int dateColumn, long now,
+            String todayLabel) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        truncateToDay(calendar);
+        long today = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_YEAR, 1 - DAY_SECTIONS);
+        long firstDay = calendar.getTimeInMillis();
+        truncateToWeek(calendar);
+        calendar.add(Calendar.WEEK_OF_YEAR, -WEEK_SECTIONS);
+        long firstWeek = calendar.getTimeInMillis();
+        
+        SimpleDateFormat dayFormat = new SimpleDateFormat("EEE", Locale.getDefault());
+        SimpleDateFormat weekFormat = new SimpleDateFormat("MMM d", Locale.getDefault());
+        SimpleDateFormat monthFormat = new SimpleDateFormat("MMM yyyy", Locale.getDefault());
+        
+        List<String> sections = new ArrayList<String>();
+        int[] positions = new int[cursor.getCount()];
+        long lastStart = Long.MIN_VALUE;
+        
+        int saved = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            calendar.setTimeInMillis(cursor.getLong(dateColumn));
+            truncateToDay(calendar);
+            long day = calendar.getTimeInMillis();
+            
+            SimpleDateFormat format;
+            if (day >= firstDay) {
+                format = dayFormat;
+            } else {
+                truncateToWeek(calendar);
+                if (calendar.getTimeInMillis() >= firstWeek) {
+                    format = weekFormat;
+                } else {
+                    // Use the row's own month, not that of its week
+                    calendar.setTimeInMillis(day);
+                    calendar.set(Calendar.DAY_OF_MONTH, 1);
+                    format = monthFormat;
+                }
+            }
+            
+            long start = calendar.getTimeInMillis();
+            if (start != lastStart) {
+                positions[sections.size()] = cursor.getPosition();
+                if (start >= today) {
+                    sections.add(todayLabel);
+                } else {
+                    sections.add(format.format(new Date(start)));
+                }
+                lastStart = start;
+            }
+        }
+        cursor.moveToPosition(saved);
+        
+        int[] sectionPositions = new int[sections.size()];
+        System.arraycopy(positions, 0, sectionPositions, 0, sectionPositions.length);
+        return new DateSectionIndexer(sections.toArray(new String[sections.size()]),
+                sectionPositions);
+    }
+    
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+    
+    @Override
+    public int getPositionForSection(int section) {
+        if (mPositions.length == 0) {
+            return 0;
+        }
+        return mPositions[Math.max(0, Math.min(section, mPositions.length - 1))];
+    }
+    
+    @Override
+    public int getSectionForPosition(int position) {
+        int index = Arrays.binarySearch(mPositions, position);
+        if (index < 0) {
+            // The position is inside the section before the insertion point
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+    
+    /** Returns true if the row at the given position starts a section. */
+    public boolean isSectionStart(int position) {
+        return Arrays.binarySearch(mPositions, position) >= 0;
+    }
+    
+    /** Get the label of the section holding the given position. */
+    public String getSectionLabel(int position) {
+        return mSections.length > 0 ? mSections[getSectionForPosition(position)] : null;
+    }
+    
+    private static void truncateToDay(Calendar calendar) {
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+    
+    private static void truncateToWeek(Calendar calendar) {
+        int offset = calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek();
+        if (offset < 0) {
+            offset += 7;
+        }
+        calendar.add(Calendar.DAY_OF_YEAR, -offset);
+    }
+}
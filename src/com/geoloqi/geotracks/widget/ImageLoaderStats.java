@@ -0,0 +1,269 @@
+package com.geoloqi.geotracks.widget;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+import com.geoloqi.geotracks.utils.FileUtils;
+
+/**
+ * <p>Counters and latency histograms describing how well the
+ * {@link LazyImageLoader} is performing. All methods are thread-safe
+ * and recording a value never allocates.</p>
+ * 
+ * <p>Use {@link #snapshot()} to read a consistent copy of the current
+ * values, which can be logged or written to a file to tune cache sizes
+ * for a class of device.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class ImageLoaderStats {
+    final AtomicLong memoryHits = new AtomicLong();
+    final AtomicLong memoryMisses = new AtomicLong();
+    final AtomicLong diskHits = new AtomicLong();
+    final AtomicLong diskMisses = new AtomicLong();
+    final AtomicLong networkFetches = new AtomicLong();
+    final AtomicLong networkNotModified = new AtomicLong();
+    final AtomicLong networkFailures = new AtomicLong();
+    final AtomicLong bytesDownloaded = new AtomicLong();
+    final AtomicLong decodeFailures = new AtomicLong();
+    final Histogram decodeTime = new Histogram();
+    final Histogram queueWaitTime = new Histogram();
+    
+    /** Get an immutable copy of the current values. */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+    
+    /** Reset every counter and histogram to zero. */
+    public void reset() {
+        memoryHits.set(0);
+        memoryMisses.set(0);
+        diskHits.set(0);
+        diskMisses.set(0);
+        networkFetches.set(0);
+        networkNotModified.set(0);
+        networkFailures.set(0);
+        bytesDownloaded.set(0);
+        decodeFailures.set(0);
+        decodeTime.reset();
+        queueWaitTime.reset();
+    }
+    
+    /**
+     * A histogram of millisecond latencies in power-of-two buckets. The
+     * first bucket holds values under 1ms and the last holds everything
+     * of {@link #MAX_BUCKET_MILLIS} or more.
+     * 
+     * @author Tristan Waddington
+     */
+    public static class Histogram {
+        /** The lower bound of the last bucket in milliseconds. */
+        public static final long MAX_BUCKET_MILLIS = 4096;
+        
+        /** The number of buckets in the histogram. */
+        public static final int BUCKET_COUNT = 14;
+        
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+        
+        /** Record a single latency in milliseconds. */
+        public void record(long millis) {
+            if (millis < 0) {
+                millis = 0;
+            }
+            mBuckets.incrementAndGet(getBucket(millis));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(millis);
+            
+            long max;
+            do {
+                max = mMax.get();
+            } while (millis > max && !mMax.compareAndSet(max, millis));
+        }
+        
+        /**
+         * Get the bucket index for a latency. Bucket 0 holds [0, 1),
+         * bucket n holds [2^(n-1), 2^n).
+         */
+        private static int getBucket(long millis) {
+            int bucket = 0;
+            while (millis > 0 && bucket < BUCKET_COUNT - 1) {
+                millis >>= 1;
+                bucket++;
+            }
+            return bucket;
+        }
+        
+        /** Get the lower bound of a bucket in milliseconds. */
+        public static long getBucketLowerBound(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+        
+        private void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotal.set(0);
+            mMax.set(0);
+        }
+    }
+    
+    /**
+     * An immutable copy of the values in {@link ImageLoaderStats}.
+     * 
+     * @author Tristan Waddington
+     */
+    public static class Snapshot {
+        public final long memoryHits;
+        public final long memoryMisses;
+        public final long diskHits;
+        public final long diskMisses;
+        public final long networkFetches;
+        public final long networkNotModified;
+        public final long networkFailures;
+        public final long bytesDownloaded;
+        public final long decodeFailures;
+        public final HistogramSnapshot decodeTime;
+        public final HistogramSnapshot queueWaitTime;
+        
+        private Snapshot(ImageLoaderStats stats) {
+            memoryHits = stats.memoryHits.get();
+            memoryMisses = stats.memoryMisses.get();
+            diskHits = stats.diskHits.get();
+            diskMisses = stats.diskMisses.get();
+            networkFetches = stats.networkFetches.get();
+            networkNotModified = stats.networkNotModified.get();
+            networkFailures = stats.networkFailures.get();
+            bytesDownloaded = stats.bytesDownloaded.get();
+            decodeFailures = stats.decodeFailures.get();
+            decodeTime = new HistogramSnapshot(stats.decodeTime);
+            queueWaitTime = new HistogramSnapshot(stats.queueWaitTime);
+        }
+        
+        /** Get the fraction of lookups served from memory. */
+        public float getMemoryHitRate() {
+            return getRate(memoryHits, memoryMisses);
+        }
+        
+        /** Get the fraction of memory misses served from disk. */
+        public float getDiskHitRate() {
+            return getRate(diskHits, diskMisses);
+        }
+        
+        private static float getRate(long hits, long misses) {
+            long total = hits + misses;
+            return total > 0 ? (float) hits / total : 0;
+        }
+        
+        /** Write the snapshot to logcat, one line at a time. */
+        public void log(String tag) {
+            for (String line : toString().split("\n")) {
+                Log.i(tag, line);
+            }
+        }
+        
+        /**
+         * Write the snapshot to a file.
+         * 
+         * @param file
+         * @param append true to add to the end of an existing file.
+         */
+        public void writeTo(File file, boolean append) throws IOException {
+            PrintWriter writer = new PrintWriter(new FileWriter(file, append));
+            try {
+                writer.println(toString());
+            } finally {
+                writer.close();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "memory: %d hits, %d misses (%.1f%%)\n",
+                    memoryHits, memoryMisses, getMemoryHitRate() * 100));
+            sb.append(String.format(Locale.US, "disk: %d hits, %d misses (%.1f%%)\n",
+                    diskHits, diskMisses, getDiskHitRate() * 100));
+            sb.append(String.format(Locale.US,
+                    "network: %d fetches, %d not modified, %d failures, %s downloaded\n",
+                    networkFetches, networkNotModified, networkFailures,
+                    FileUtils.formatFileSize(bytesDownloaded)));
+            sb.append(String.format(Locale.US, "decode: %d failures, %s\n",
+                    decodeFailures, decodeTime));
+            sb.append(String.format(Locale.US, "queue wait: %s", queueWaitTime));
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * An immutable copy of a {@link Histogram}.
+     * 
+     * @author Tristan Waddington
+     */
+    public static class HistogramSnapshot {
+        public final long count;
+        public final long total;
+        public final long max;
+        private final long[] mBuckets = new long[Histogram.BUCKET_COUNT];
+        
+        private HistogramSnapshot(Histogram histogram) {
+            count = histogram.mCount.get();
+            total = histogram.mTotal.get();
+            max = histogram.mMax.get();
+            for (int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = histogram.mBuckets.get(i);
+            }
+        }
+        
+        /** Get the number of values recorded in a bucket. */
+        public long getBucketCount(int bucket) {
+            return mBuckets[bucket];
+        }
+        
+        /** Get the mean latency in milliseconds. */
+        public float getMean() {
+            return count > 0 ? (float) total / count : 0;
+        }
+        
+        /**
+         * Get an estimate of the given percentile in milliseconds. The
+         * estimate is the upper bound of the bucket the percentile falls in.
+         * 
+         * @param percentile a value between 0 and 1.
+         */
+        public long getPercentile(float percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return i < mBuckets.length - 1
+                            ? Histogram.getBucketLowerBound(i + 1) : max;
+                }
+            }
+            return max;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "n=%d mean=%.1fms p50<=%dms p90<=%dms p99<=%dms max=%dms",
+                    count, getMean(), getPercentile(0.5f), getPercentile(0.9f),
+                    getPercentile(0.99f), max);
+        }
+    }
+}
@@ -1,13 +1,31 @@
 package com.geoloqi.geotracks.widget;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -16,21 +34,35 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 
-import android.app.Activity;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.util.LruCache;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ListView;
 
+import com.geoloqi.geotracks.utils.BitmapPool;
+import com.geoloqi.geotracks.utils.BitmapUtils;
+import com.geoloqi.geotracks.utils.CacheValidators;
+import com.geoloqi.geotracks.utils.DiskLruCache;
 import com.geoloqi.geotracks.utils.FileUtils;
+import com.geoloqi.geotracks.utils.HttpUtils;
+import com.geoloqi.geotracks.utils.TeeInputStream;
 
 /**
  * A lazy image loader class for downloading images on a background
@@ -48,39 +80,157 @@ public class LazyImageLoader {
     private static final int HTTP_CONNECT_TIMEOUT = 2500;
     private static final int HTTP_SOCKET_TIMEOUT = 5000;
     
+    /** The number of threads used to download remote images. */
+    private static final int DOWNLOAD_THREAD_COUNT = 3;
+    
+    /**
+     * How long a download waits for a pooled connection, in milliseconds.
+     * Every download thread can hold a connection to the same host, so
+     * a download only waits if a connection was not released.
+     */
+    private static final long HTTP_POOL_TIMEOUT = 30 * 1000;
+    
+    /**
+     * The fraction of the per-application heap that may be used by
+     * the in-memory bitmap cache, expressed as a divisor.
+     */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+    
+    /**
+     * The size of the reusable bitmap pool as a fraction of the
+     * memory cache size, expressed as a divisor.
+     */
+    private static final int BITMAP_POOL_DIVIDER = 4;
+    
+    /** The name of the directory used by the on-disk image cache. */
+    private static final String DISK_CACHE_DIR = "images";
+    
+    /** The maximum size of the on-disk image cache in bytes. */
+    private static final long DISK_CACHE_SIZE = 10 * FileUtils.ONE_MB;
+    
+    /**
+     * How long a cached image is considered fresh when the server
+     * does not say, in milliseconds.
+     */
+    private static final long DEFAULT_IMAGE_TTL = 24 * 60 * 60 * 1000;
+    
+    /**
+     * The fraction of the memory cache kept when the app is in the
+     * background or memory is getting low, expressed as a divisor.
+     */
+    private static final int TRIM_CACHE_DIVIDER = 2;
+    
     /** The bitmap image cache. */
-    private static LruCache<String, Bitmap> mImageCache;
+    private static BitmapLruCache mImageCache;
+    
+    /** The pool of bitmaps that are no longer displayed or cached. */
+    private final BitmapPool mBitmapPool;
+    
+    /** The config used when decoding images. */
+    private volatile Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
     
-    /** The bitmap options used when loading images from disk. */
-    private static BitmapFactory.Options sBitmapOptions;
+    /**
+     * The bitmap each holder is currently displaying. This map is only
+     * accessed from the main thread.
+     */
+    private final Map<ImageViewHolder, Bitmap> mDisplayedBitmaps =
+            new WeakHashMap<ImageViewHolder, Bitmap>();
+    
+    /**
+     * The number of holders displaying each bitmap. This map is only
+     * accessed from the main thread.
+     */
+    private final Map<Bitmap, Integer> mDisplayCounts =
+            new WeakHashMap<Bitmap, Integer>();
+    
+    /**
+     * Bitmaps that have left the memory cache while still displayed.
+     * They are pooled once the last holder releases them.
+     */
+    private final Map<Bitmap, Boolean> mUncachedBitmaps =
+            new WeakHashMap<Bitmap, Boolean>();
     
     /** The singleton instance of the object. */
     private static LazyImageLoader sInstance;
     
-    /** The Activity context. */
+    /** The sequence used to order queued tasks. */
+    private static final AtomicLong sTaskSequence = new AtomicLong();
+    
+    /** The performance counters for this loader. */
+    private final ImageLoaderStats mStats = new ImageLoaderStats();
+    
+    /** The application context. */
     private final Context mContext;
     
-    /** Our DefaultHttpClient instance. */
+    /** Our DefaultHttpClient instance, backed by a pool of connections. */
     private final DefaultHttpClient mClient;
     
     /** An instance of {@link ExecutorService} for downloading remote images. */
     private final ExecutorService mDownloadExecutor;
     
+    /**
+     * An instance of {@link ExecutorService} for reading and decoding
+     * cached images. A single thread keeps the number of bitmaps being
+     * decoded at once, and so the peak memory used, to a minimum.
+     */
+    private final ExecutorService mDecodeExecutor;
+    
+    /** A {@link Handler} used to deliver images on the main thread. */
+    private final Handler mHandler;
+    
+    /**
+     * The in-flight image requests keyed by url. This map is only
+     * accessed from the main thread.
+     */
+    private final Map<String, ImageRequest> mRequests =
+            new HashMap<String, ImageRequest>();
+    
+    /**
+     * The request each bound holder is currently waiting on. This map
+     * is only accessed from the main thread.
+     */
+    private final Map<ImageViewHolder, ImageRequest> mHolderRequests =
+            new WeakHashMap<ImageViewHolder, ImageRequest>();
+    
+    /** The on-disk image cache; opened lazily on a background thread. */
+    private DiskLruCache mDiskCache;
+    
+    /** True if the disk cache could not be opened. */
+    private boolean mDiskCacheFailed;
+    
+    /** An executor for purging the disk cache; created when first needed. */
+    private ExecutorService mPurgeExecutor;
+    
+    /**
+     * The decode size of the last image requested for display, used to
+     * size prefetched images. Only accessed from the main thread.
+     */
+    private int mLastTargetWidth;
+    private int mLastTargetHeight;
+    
     private LazyImageLoader(Context context) {
-        mContext = context;
-        mClient = new DefaultHttpClient();
-        mDownloadExecutor = Executors.newSingleThreadExecutor();
+        mContext = context.getApplicationContext();
+        // Images usually come from a single host, so allow one
+        // connection to it per download thread
+        mClient = HttpUtils.newPooledHttpClient(DOWNLOAD_THREAD_COUNT,
+                DOWNLOAD_THREAD_COUNT, HTTP_CONNECT_TIMEOUT, HTTP_SOCKET_TIMEOUT,
+                HTTP_POOL_TIMEOUT);
+        mDownloadExecutor = newLifoExecutor(DOWNLOAD_THREAD_COUNT,
+                "LazyImageLoader-download");
+        mDecodeExecutor = newLifoExecutor(1, "LazyImageLoader-decode");
+        mHandler = new Handler(Looper.getMainLooper());
         
-        // Create our image cache
-        mImageCache = new LruCache<String, Bitmap>(8);
+        // Create our image cache, sized in bytes relative to
+        // the memory class of the device.
+        int memoryCacheSize = getMemoryCacheSize(context);
+        mImageCache = new BitmapLruCache(memoryCacheSize);
+        mBitmapPool = new BitmapPool(memoryCacheSize / BITMAP_POOL_DIVIDER);
         
-        // Set default client parameters
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params,
-                HTTP_CONNECT_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params,
-                HTTP_SOCKET_TIMEOUT);
-        mClient.setParams(params);
+        // Trim our caches when the system is low on memory. Older
+        // platforms must forward Activity#onLowMemory() instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            mContext.registerComponentCallbacks(new MemoryCallbacks());
+        }
     }
     
     /**
@@ -100,34 +250,346 @@ public class LazyImageLoader {
      * does not exist in a local cache, the loader will spawn a
      * download task on a background thread.</p>
      * 
-     * <p>When the loader has found an image, it will post a
+     * <p>If the same url is already being loaded the holder will
+     * wait on the existing request instead of starting a new one.
+     * When the loader has found an image, it will post a
      * runnable to the main thread to update the image view.</p>
      * 
+     * <p>Any request the holder was previously waiting on is
+     * cancelled, so recycled rows never wait on stale images. The
+     * most recent requests are always served first.</p>
+     * 
+     * <p>Images are decoded at roughly the size of the holder's
+     * {@link ImageView}. The memory cache is keyed by url only, so
+     * all views showing the same url should be the same size.</p>
+     * 
+     * <p>This method must be called from the main thread.</p>
+     * 
      * @param holder
      */
     public void loadImage(final ImageViewHolder holder) {
+        // Detach the holder from any previous request
+        releaseBitmap(holder);
+        cancel(holder);
+        
         if (!TextUtils.isEmpty(holder.imageUrl)) {
             Bitmap bitmap = mImageCache.get(holder.imageUrl);
             if (bitmap != null) {
-                holder.image.setImageBitmap(bitmap);
+                mStats.memoryHits.incrementAndGet();
+                displayBitmap(holder, bitmap);
             } else {
-                mDownloadExecutor.execute(new ImageDownload(holder));
+                mStats.memoryMisses.incrementAndGet();
+                ImageRequest request = mRequests.get(holder.imageUrl);
+                if (request != null && request.isPrefetch()) {
+                    // Queued prefetch work runs behind everything else,
+                    // so replace it with a request at normal priority.
+                    mRequests.remove(holder.imageUrl);
+                    request.cancel();
+                    request = null;
+                }
+                if (request == null) {
+                    // Start a new request for this url
+                    request = new ImageRequest(holder.imageUrl);
+                    mRequests.put(holder.imageUrl, request);
+                    request.setTargetSize(holder.image);
+                    mDecodeExecutor.execute(new CacheLookup(request));
+                } else {
+                    request.setTargetSize(holder.image);
+                }
+                request.holders.add(holder);
+                mHolderRequests.put(holder, request);
+                
+                mLastTargetWidth = request.getTargetWidth();
+                mLastTargetHeight = request.getTargetHeight();
+            }
+        }
+    }
+    
+    /**
+     * <p>Load an image into the memory cache ahead of it being displayed.
+     * Prefetch work is queued behind all other work, so it only uses
+     * threads that would otherwise be idle. The image is decoded at the
+     * size of the last image requested with {@link #loadImage}.</p>
+     * 
+     * <p>Nothing is done if the image is already cached or loading.
+     * If a holder later asks for the same url the prefetch is promoted
+     * to a normal request.</p>
+     * 
+     * <p>This method must be called from the main thread.</p>
+     * 
+     * @param url
+     */
+    public void prefetch(String url) {
+        if (TextUtils.isEmpty(url) || mImageCache.get(url) != null
+                || mRequests.containsKey(url)) {
+            return;
+        }
+        
+        ImageRequest request = new ImageRequest(url, true);
+        if (mLastTargetWidth > 0 && mLastTargetHeight > 0) {
+            request.setTargetSize(mLastTargetWidth, mLastTargetHeight);
+        } else {
+            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+            request.setTargetSize(metrics.widthPixels, metrics.heightPixels);
+        }
+        mRequests.put(url, request);
+        mDecodeExecutor.execute(new CacheLookup(request));
+    }
+    
+    /**
+     * <p>Cancel every prefetch that no holder has asked for yet. Call
+     * this when the prefetched images are no longer likely to be needed,
+     * for example when the user starts a fling.</p>
+     * 
+     * <p>This method must be called from the main thread.</p>
+     */
+    public void cancelPrefetches() {
+        Iterator<ImageRequest> iterator = mRequests.values().iterator();
+        while (iterator.hasNext()) {
+            ImageRequest request = iterator.next();
+            if (request.isPrefetch() && request.holders.isEmpty()) {
+                iterator.remove();
+                request.cancel();
+            }
+        }
+    }
+    
+    /**
+     * <p>Release memory in response to a
+     * {@link ComponentCallbacks2#onTrimMemory(int)} level. The memory
+     * cache is halved while the UI is hidden or memory is getting low,
+     * and emptied once the process is likely to be killed or memory
+     * is critically low. The bitmap pool is emptied in either case.</p>
+     * 
+     * <p>On API 14 and later this is called automatically. This method
+     * must be called from the main thread.</p>
+     * 
+     * @param level
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            Log.d(TAG, String.format("Clearing the memory cache (level %d).", level));
+            mImageCache.evictAll();
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            Log.d(TAG, String.format("Trimming the memory cache (level %d).", level));
+            mImageCache.trimToSize(mImageCache.maxSize() / TRIM_CACHE_DIVIDER);
+            mBitmapPool.clear();
+        } else {
+            mBitmapPool.clear();
+        }
+        
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nobody is looking; drop speculative work and idle sockets
+            cancelPrefetches();
+            mClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Release as much memory as possible. Activities should forward
+     * {@link android.app.Activity#onLowMemory()} here on platforms
+     * older than API 14.
+     * 
+     * <p>This method must be called from the main thread.</p>
+     */
+    public void onLowMemory() {
+        trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+    
+    /**
+     * Get the number of bytes used by the on-disk image cache. The
+     * cache keeps a running total, so this never walks the cache
+     * directory.
+     * 
+     * @return the size in bytes; -1 if the cache has not been opened.
+     */
+    public long getDiskCacheSize() {
+        DiskLruCache diskCache;
+        synchronized (this) {
+            diskCache = mDiskCache;
+        }
+        return diskCache != null && !diskCache.isClosed() ? diskCache.size() : -1;
+    }
+    
+    /**
+     * Remove every image from the disk cache on a background thread.
+     * Cancel the returned {@link Future} with interruption to stop the
+     * purge partway; images already removed stay removed.
+     * 
+     * @return a future that completes when the purge is finished.
+     */
+    public synchronized Future<?> clearDiskCache() {
+        if (mPurgeExecutor == null) {
+            mPurgeExecutor = Executors.newSingleThreadExecutor(
+                    new BackgroundThreadFactory("LazyImageLoader-purge"));
+        }
+        return mPurgeExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                DiskLruCache diskCache = getDiskCache();
+                if (diskCache == null) {
+                    return;
+                }
+                try {
+                    long start = SystemClock.uptimeMillis();
+                    diskCache.evictAll();
+                    Log.d(TAG, String.format("Cleared the disk image cache in %dms.",
+                            SystemClock.uptimeMillis() - start));
+                } catch (InterruptedIOException e) {
+                    Log.d(TAG, String.format("Disk image cache purge cancelled (%s left).",
+                            FileUtils.formatFileSize(diskCache.size())));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to clear the disk image cache!", e);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Get the performance counters for this loader. Call
+     * {@link ImageLoaderStats#snapshot()} to read them.
+     */
+    public ImageLoaderStats getStats() {
+        return mStats;
+    }
+    
+    /**
+     * Set the {@link Bitmap.Config} used to decode images. Use
+     * {@link Bitmap.Config#RGB_565} to halve the memory used by images
+     * that do not need an alpha channel. Images that are already cached
+     * are not affected.
+     * 
+     * @param config
+     */
+    public void setBitmapConfig(Bitmap.Config config) {
+        mBitmapConfig = config;
+    }
+    
+    /** Get the {@link Bitmap.Config} used to decode images. */
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+    
+    /** Show a bitmap in a holder's {@link ImageView} and track its use. */
+    private void displayBitmap(ImageViewHolder holder, Bitmap bitmap) {
+        holder.image.setImageBitmap(bitmap);
+        mDisplayedBitmaps.put(holder, bitmap);
+        
+        Integer count = mDisplayCounts.get(bitmap);
+        mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+    
+    /**
+     * Stop tracking the bitmap a holder was displaying. The bitmap is
+     * cleared from the {@link ImageView} so a recycled row never shows
+     * a stale image, and it is pooled for reuse if nothing else needs it.
+     */
+    private void releaseBitmap(ImageViewHolder holder) {
+        Bitmap bitmap = mDisplayedBitmaps.remove(holder);
+        if (bitmap == null) {
+            return;
+        }
+        
+        // Only clear the view if it still shows our bitmap
+        Drawable drawable = holder.image.getDrawable();
+        if (drawable instanceof BitmapDrawable
+                && ((BitmapDrawable) drawable).getBitmap() == bitmap) {
+            holder.image.setImageDrawable(null);
+        }
+        
+        Integer count = mDisplayCounts.get(bitmap);
+        if (count == null || count <= 1) {
+            mDisplayCounts.remove(bitmap);
+            if (mUncachedBitmaps.remove(bitmap) != null) {
+                mBitmapPool.put(bitmap);
+            }
+        } else {
+            mDisplayCounts.put(bitmap, count - 1);
+        }
+    }
+    
+    /**
+     * Called when a bitmap leaves the memory cache. The bitmap is pooled
+     * for reuse, or once no holder displays it any longer.
+     */
+    private void onBitmapUncached(Bitmap bitmap) {
+        if (mDisplayCounts.containsKey(bitmap)) {
+            mUncachedBitmaps.put(bitmap, Boolean.TRUE);
+        } else {
+            mBitmapPool.put(bitmap);
+        }
+    }
+    
+    /**
+     * <p>Stop waiting for the image the given holder last requested.
+     * If no other holder is waiting on the same url the request is
+     * cancelled: queued work for it is skipped and an in-progress
+     * download is aborted.</p>
+     * 
+     * <p>This method must be called from the main thread.</p>
+     * 
+     * @param holder
+     */
+    public void cancel(ImageViewHolder holder) {
+        ImageRequest request = mHolderRequests.remove(holder);
+        if (request != null) {
+            request.holders.remove(holder);
+            if (request.holders.isEmpty()) {
+                if (mRequests.get(request.url) == request) {
+                    mRequests.remove(request.url);
+                }
+                request.cancel();
             }
         }
     }
     
     /**
-     * Returns a reference to the image {@link File} on disk.
+     * Create a fixed size {@link ThreadPoolExecutor} that runs the most
+     * recently submitted {@link ImageTask} first.
+     */
+    private static ThreadPoolExecutor newLifoExecutor(int threads, String name) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory(name));
+    }
+    
+    /**
+     * Get the maximum size of the in-memory bitmap cache in bytes.
      */
-    private File getImageFile(String url) {
-        return new File(mContext.getCacheDir(), getFilename(url));
+    private static int getMemoryCacheSize(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        return (am.getMemoryClass() * FileUtils.ONE_MB) / MEMORY_CACHE_DIVIDER;
     }
     
     /**
-     * Get the on-disk filename for an image url; returns null if an error
+     * Get the on-disk image cache, opening it and reading its journal
+     * the first time this is called. This method performs disk I/O and
+     * must not be called from the main thread.
+     * 
+     * @return the disk cache; null if the cache could not be opened.
+     */
+    private synchronized DiskLruCache getDiskCache() {
+        if ((mDiskCache == null || mDiskCache.isClosed()) && !mDiskCacheFailed) {
+            try {
+                mDiskCache = DiskLruCache.open(
+                        new File(mContext.getCacheDir(), DISK_CACHE_DIR),
+                        DISK_CACHE_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the disk image cache!", e);
+                mDiskCacheFailed = true;
+            }
+        }
+        return mDiskCacheFailed ? null : mDiskCache;
+    }
+    
+    /**
+     * Get the disk cache key for an image url; returns null if an error
      * occurred.
      */
-    private String getFilename(String url) {
+    private String getCacheKey(String url) {
         try {
             MessageDigest md = MessageDigest.getInstance("MD5");
             byte[] messageDigest = md.digest(url.getBytes());
@@ -140,71 +602,618 @@ public class LazyImageLoader {
     }
     
     /**
-     * A {@link Runnable} that will download a remote image, cache
-     * it to disk and, when finished, update an ImageView.
+     * Publish the result of a request on the main thread, updating the
+     * {@link ImageView} of every holder that is still waiting on it.
+     * 
+     * @param request
+     * @param bitmap the decoded image; null if the request failed.
+     */
+    private void deliver(final ImageRequest request, final Bitmap bitmap) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequests.get(request.url) == request) {
+                    mRequests.remove(request.url);
+                }
+                for (ImageViewHolder holder : request.holders) {
+                    if (mHolderRequests.get(holder) == request) {
+                        mHolderRequests.remove(holder);
+                    }
+                }
+                
+                if (bitmap != null) {
+                    // Add the image to the cache
+                    mImageCache.put(request.url, bitmap);
+                    
+                    for (ImageViewHolder holder : request.holders) {
+                        // Rows may have been recycled for another url
+                        if (request.url.equals(holder.imageUrl)) {
+                            displayBitmap(holder, bitmap);
+                        }
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Decode an image file from the disk cache at the size requested.
+     * If the file cannot be decoded it is dropped from the cache so it
+     * will be downloaded again next time.
+     */
+    private Bitmap decodeImage(ImageRequest request, DiskLruCache diskCache,
+            String key, File imageFile) {
+        Bitmap bitmap = null;
+        long start = SystemClock.uptimeMillis();
+        try {
+            bitmap = BitmapUtils.decodeSampledBitmap(imageFile.getAbsolutePath(),
+                    request.getTargetWidth(), request.getTargetHeight(),
+                    mBitmapConfig, mBitmapPool);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, String.format("Out of memory decoding '%s'!", imageFile));
+            mStats.decodeFailures.incrementAndGet();
+            return null;
+        }
+        mStats.decodeTime.record(SystemClock.uptimeMillis() - start);
+        
+        if (bitmap == null) {
+            mStats.decodeFailures.incrementAndGet();
+            Log.w(TAG, String.format("Failed to decode image '%s'!", imageFile));
+            try {
+                diskCache.remove(key);
+            } catch (IOException e) {
+                // Pass
+            }
+        }
+        return bitmap;
+    }
+    
+    /**
+     * The state of a single in-flight image url and the holders that are
+     * waiting on it. The holders list is only accessed from the main thread.
+     * 
+     * @author Tristan Waddington
+     */
+    private static class ImageRequest {
+        public final String url;
+        public final List<ImageViewHolder> holders =
+                new ArrayList<ImageViewHolder>(1);
+        
+        /** True if this request was made by {@link #prefetch(String)}. */
+        private final boolean mPrefetch;
+        
+        /** True once no holder is waiting on this request. */
+        private volatile boolean mCancelled;
+        
+        /** The size the image should be decoded at; 0 if unknown. */
+        private volatile int mTargetWidth;
+        private volatile int mTargetHeight;
+        
+        /** The HTTP request currently downloading this image, if any. */
+        private volatile HttpGet mHttpRequest;
+        
+        public ImageRequest(String url) {
+            this(url, false);
+        }
+        
+        public ImageRequest(String url, boolean prefetch) {
+            this.url = url;
+            mPrefetch = prefetch;
+        }
+        
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+        
+        public boolean isPrefetch() {
+            return mPrefetch;
+        }
+        
+        public int getTargetWidth() {
+            return mTargetWidth;
+        }
+        
+        public int getTargetHeight() {
+            return mTargetHeight;
+        }
+        
+        /**
+         * Grow the decode size to fit the given view. The laid out size
+         * is used if known, then the layout params and finally the size
+         * of the screen.
+         */
+        public void setTargetSize(ImageView view) {
+            DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+            ViewGroup.LayoutParams params = view.getLayoutParams();
+            
+            int width = view.getWidth();
+            if (width <= 0 && params != null) {
+                width = params.width;
+            }
+            if (width <= 0) {
+                width = metrics.widthPixels;
+            }
+            
+            int height = view.getHeight();
+            if (height <= 0 && params != null) {
+                height = params.height;
+            }
+            if (height <= 0) {
+                height = metrics.heightPixels;
+            }
+            
+            setTargetSize(width, height);
+        }
+        
+        /** Grow the decode size to fit the given dimensions. */
+        public void setTargetSize(int width, int height) {
+            mTargetWidth = Math.max(mTargetWidth, width);
+            mTargetHeight = Math.max(mTargetHeight, height);
+        }
+        
+        /** Cancel the request, aborting any download that is in progress. */
+        public void cancel() {
+            mCancelled = true;
+            
+            HttpGet httpRequest = mHttpRequest;
+            if (httpRequest != null) {
+                httpRequest.abort();
+            }
+        }
+        
+        /**
+         * Set the HTTP request used to download this image.
+         * 
+         * @return false if the request has already been cancelled.
+         */
+        public boolean setHttpRequest(HttpGet httpRequest) {
+            mHttpRequest = httpRequest;
+            return !mCancelled;
+        }
+    }
+    
+    /**
+     * The base class of all work queued by the loader. Tasks are ordered
+     * so that the most recently created task runs first, which serves the
+     * rows currently on screen before rows that have scrolled away.
+     * Prefetch tasks always run after all other tasks. Tasks for
+     * cancelled requests are skipped.
+     * 
+     * @author Tristan Waddington
+     */
+    private abstract class ImageTask implements Runnable,
+            Comparable<ImageTask> {
+        protected final ImageRequest mRequest;
+        private final long mSequence = sTaskSequence.getAndIncrement();
+        private final long mQueuedAt = SystemClock.uptimeMillis();
+        
+        public ImageTask(ImageRequest request) {
+            mRequest = request;
+        }
+        
+        @Override
+        public int compareTo(ImageTask another) {
+            boolean prefetch = mRequest.isPrefetch();
+            if (prefetch != another.mRequest.isPrefetch()) {
+                return prefetch ? 1 : -1;
+            }
+            
+            // Newest first
+            if (mSequence == another.mSequence) {
+                return 0;
+            }
+            return mSequence > another.mSequence ? -1 : 1;
+        }
+        
+        @Override
+        public final void run() {
+            if (!mRequest.isCancelled()) {
+                mStats.queueWaitTime.record(SystemClock.uptimeMillis() - mQueuedAt);
+                runTask();
+            }
+        }
+        
+        /** Perform the work of this task. */
+        protected abstract void runTask();
+    }
+    
+    /**
+     * A {@link Runnable} that looks for an image in the disk cache and
+     * decodes it. If the image is not on disk, an {@link ImageDownload}
+     * is queued for it.
+     * 
+     * @author Tristan Waddington
+     */
+    private class CacheLookup extends ImageTask {
+        public CacheLookup(ImageRequest request) {
+            super(request);
+        }
+        
+        @Override
+        protected void runTask() {
+            DiskLruCache diskCache = getDiskCache();
+            String key = getCacheKey(mRequest.url);
+            
+            File imageFile = null;
+            if (diskCache != null && key != null) {
+                try {
+                    // Get the image from the disk cache
+                    imageFile = diskCache.get(key);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read the disk image cache!");
+                }
+            }
+            
+            if (imageFile == null) {
+                mStats.diskMisses.incrementAndGet();
+                mDownloadExecutor.execute(new ImageDownload(mRequest, null, null));
+                return;
+            }
+            mStats.diskHits.incrementAndGet();
+            
+            CacheValidators validators = CacheValidators.parse(
+                    diskCache.getMetadata(key));
+            if (validators != null && validators.isFresh(System.currentTimeMillis())) {
+                // Load the bitmap into memory
+                deliver(mRequest, decodeImage(mRequest, diskCache, key, imageFile));
+            } else {
+                // The image is stale; ask the server if it has changed
+                mDownloadExecutor.execute(new ImageDownload(
+                        mRequest, imageFile, validators));
+            }
+        }
+    }
+    
+    /**
+     * A {@link Runnable} that decodes a freshly downloaded image from the
+     * disk cache and delivers it.
+     * 
+     * @author Tristan Waddington
+     */
+    private class ImageDecode extends ImageTask {
+        private final DiskLruCache mDiskCache;
+        private final String mKey;
+        private final File mImageFile;
+        
+        public ImageDecode(ImageRequest request, DiskLruCache diskCache,
+                String key, File imageFile) {
+            super(request);
+            mDiskCache = diskCache;
+            mKey = key;
+            mImageFile = imageFile;
+        }
+        
+        @Override
+        protected void runTask() {
+            deliver(mRequest, decodeImage(mRequest, mDiskCache, mKey, mImageFile));
+        }
+    }
+    
+    /**
+     * A {@link Runnable} that will download a remote image and cache
+     * it to disk. Decoding is handed back to the decode thread so that
+     * the download threads are only ever busy with network I/O.
+     * 
+     * <p>If a stale copy of the image is cached, a conditional request
+     * is made with its validators. A 304 Not Modified response just
+     * refreshes the stored validators, and if the server can't be
+     * reached the stale copy is used.</p>
      * 
      * @author Tristan Waddington
      */
-    private class ImageDownload implements Runnable {
-        private final ImageViewHolder mHolder;
+    private class ImageDownload extends ImageTask {
         private final String mUrl;
+        private final File mStaleFile;
+        private final CacheValidators mValidators;
         
-        public ImageDownload(ImageViewHolder holder) {
-            mHolder = holder;
-            mUrl = holder.imageUrl;
+        /**
+         * @param request
+         * @param staleFile a cached copy of the image that has expired;
+         *        null if the image is not cached.
+         * @param validators the validators of the cached copy; may be null.
+         */
+        public ImageDownload(ImageRequest request, File staleFile,
+                CacheValidators validators) {
+            super(request);
+            mUrl = request.url;
+            mStaleFile = staleFile;
+            mValidators = validators;
         }
         
         @Override
-        public void run() {
+        protected void runTask() {
+            DiskLruCache diskCache = getDiskCache();
+            String key = getCacheKey(mUrl);
+            
             try {
-                // Get the path to the image on disk
-                File imageFile = getImageFile(mUrl);
+                URI uri = URI.create(mUrl);
+                Log.d(TAG, String.format("Downloading image from '%s'", uri));
                 
-                if (!imageFile.exists()) {
-                    URI uri = URI.create(mUrl);
-                    Log.d(TAG, String.format("Downloading image from '%s'", uri));
-                    
-                    // Build our request
-                    HttpGet request = new HttpGet();
-                    request.setURI(uri);
-                    
-                    // Execute the request
-                    HttpResponse response = mClient.execute(request);
-                    StatusLine status = response.getStatusLine();
+                // Build our request
+                HttpGet request = new HttpGet();
+                request.setURI(uri);
+                if (mStaleFile != null && mValidators != null
+                        && mValidators.canRevalidate()) {
+                    mValidators.addConditionalHeaders(request);
+                }
+                if (!mRequest.setHttpRequest(request)) {
+                    // Cancelled while we were getting ready
+                    return;
+                }
+                
+                // Execute the request
+                HttpResponse response = mClient.execute(request);
+                mStats.networkFetches.incrementAndGet();
+                StatusLine status = response.getStatusLine();
+                HttpEntity entity = response.getEntity();
+                CacheValidators validators = CacheValidators.fromResponse(
+                        response, System.currentTimeMillis(), DEFAULT_IMAGE_TTL);
+                
+                if (status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED
+                        && mStaleFile != null) {
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
                     
-                    if (status.getStatusCode() == HttpStatus.SC_OK) {
-                        HttpEntity entity = response.getEntity();
-                        
-                        // Write the bitmap to disk
-                        FileUtils.writeFileToDisk(imageFile, entity.getContent());
-                    } else {
-                        Log.w(TAG, String.format(
-                                "Image download failed with status: %s!", status));
+                    // The cached copy is still good; extend its lifetime
+                    mStats.networkNotModified.incrementAndGet();
+                    if (mValidators != null) {
+                        validators = mValidators.update(validators);
                     }
+                    diskCache.setMetadata(key, validators.toString());
+                    decodeLater(diskCache, key, mStaleFile);
+                    return;
                 }
                 
-                // Load the bitmap into memory
-                final Bitmap bitmap = BitmapFactory.decodeFile(
-                        imageFile.getAbsolutePath(), sBitmapOptions);
+                if (status.getStatusCode() != HttpStatus.SC_OK) {
+                    Log.w(TAG, String.format(
+                            "Image download failed with status: %s!", status));
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+                    onDownloadFailed(diskCache, key);
+                    return;
+                }
                 
-                // Set the bitmap on the main thread
-                ((Activity) mContext).runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (mUrl.equals(mHolder.imageUrl)) {
-                            mHolder.image.setImageBitmap(bitmap);
-                            
-                            // Add the image to the cache
-                            mImageCache.put(mUrl, bitmap);
-                        }
+                DiskLruCache.Editor editor = null;
+                if (diskCache != null && key != null) {
+                    editor = diskCache.edit(key);
+                }
+                
+                if (editor == null) {
+                    // The disk cache is unavailable or busy with this key,
+                    // decode straight from the response.
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inPreferredConfig = mBitmapConfig;
+                    InputStream content = entity.getContent();
+                    try {
+                        deliver(mRequest, BitmapFactory.decodeStream(
+                                content, null, options));
+                    } finally {
+                        // Release the connection back to the pool
+                        content.close();
                     }
-                });
+                    return;
+                }
+                
+                streamToCache(entity, diskCache, key, editor, validators);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Failed to download image!");
+                onDownloadFailed(diskCache, key);
             } catch (IllegalStateException e) {
                 Log.w(TAG, "Failed to download image!");
+                onDownloadFailed(diskCache, key);
             } catch (ClientProtocolException e) {
                 Log.w(TAG, "Failed to download image!");
+                onDownloadFailed(diskCache, key);
             } catch (IOException e) {
                 Log.w(TAG, "Failed to download image!");
+                onDownloadFailed(diskCache, key);
+            }
+        }
+        
+        /**
+         * <p>Decode the response while writing it to the disk cache, in a
+         * single pass over the stream. The response is copied to the
+         * cache file as the decoder reads it, and whatever the decoder
+         * leaves unread is copied once it has finished.</p>
+         * 
+         * <p>If the image can't be decoded from the stream, the rest of
+         * the response is written to disk and the cached file is decoded
+         * instead. If writing to disk fails, the cached copy is discarded
+         * but the decoded image is still delivered.</p>
+         */
+        private void streamToCache(HttpEntity entity, DiskLruCache diskCache,
+                String key, DiskLruCache.Editor editor, CacheValidators validators)
+                throws IOException {
+            InputStream content = null;
+            OutputStream output = null;
+            try {
+                content = entity.getContent();
+                output = new BufferedOutputStream(editor.newOutputStream(),
+                        FileUtils.BUFFER_SIZE);
+                TeeInputStream tee = new TeeInputStream(content, output);
+                
+                // Buffer above the tee so that bytes read again after
+                // probing the image bounds are not written twice.
+                InputStream in = new BufferedInputStream(tee, FileUtils.BUFFER_SIZE);
+                Bitmap bitmap = null;
+                boolean decodeFromFile = false;
+                long start = SystemClock.uptimeMillis();
+                try {
+                    bitmap = BitmapUtils.decodeSampledBitmap(in,
+                            mRequest.getTargetWidth(), mRequest.getTargetHeight(),
+                            mBitmapConfig, mBitmapPool);
+                    mStats.decodeTime.record(SystemClock.uptimeMillis() - start);
+                } catch (IOException e) {
+                    // The image header was too large to probe. If the
+                    // network failed instead, draining will throw.
+                    decodeFromFile = true;
+                } catch (IllegalArgumentException e) {
+                    // A pooled bitmap could not be reused
+                    decodeFromFile = true;
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, String.format("Out of memory decoding '%s'!", mUrl));
+                    decodeFromFile = true;
+                }
+                
+                // Copy whatever the decoder did not read
+                tee.drain();
+                output.close();
+                output = null;
+                mStats.bytesDownloaded.addAndGet(tee.getCount());
+                
+                if (tee.hasOutputFailed()) {
+                    Log.w(TAG, "Failed to write image to disk!", tee.getOutputException());
+                    editor.abort();
+                } else if (bitmap == null && !decodeFromFile) {
+                    // Don't cache something we can't decode
+                    editor.abort();
+                } else {
+                    editor.setMetadata(validators.toString());
+                    editor.commit();
+                }
+                
+                if (!decodeFromFile) {
+                    if (bitmap == null) {
+                        mStats.decodeFailures.incrementAndGet();
+                        Log.w(TAG, String.format("Failed to decode image '%s'!", mUrl));
+                    }
+                    deliver(mRequest, bitmap);
+                    return;
+                }
+                
+                File imageFile = diskCache.get(key);
+                if (imageFile != null) {
+                    decodeLater(diskCache, key, imageFile);
+                } else {
+                    mStats.decodeFailures.incrementAndGet();
+                    deliver(mRequest, null);
+                }
+            } finally {
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        // Pass
+                    }
+                }
+                if (content != null) {
+                    // Release the connection back to the pool
+                    content.close();
+                }
+                editor.abort();
+            }
+        }
+        
+        /** Queue a cached image file to be decoded and delivered. */
+        private void decodeLater(DiskLruCache diskCache, String key, File imageFile) {
+            mDecodeExecutor.execute(new ImageDecode(
+                    mRequest, diskCache, key, imageFile));
+        }
+        
+        /** Fall back to the stale copy of the image, if there is one. */
+        private void onDownloadFailed(DiskLruCache diskCache, String key) {
+            mStats.networkFailures.incrementAndGet();
+            if (mStaleFile != null && mStaleFile.exists()) {
+                decodeLater(diskCache, key, mStaleFile);
+            } else {
+                deliver(mRequest, null);
+            }
+        }
+    }
+    
+    /**
+     * A {@link ThreadFactory} that creates named threads running at
+     * background priority so image work never competes with the UI.
+     * 
+     * @author Tristan Waddington
+     */
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mName;
+        
+        public BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+        
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mCount.getAndIncrement());
+        }
+    }
+    
+    /**
+     * Forwards memory callbacks to {@link #trimMemory(int)}. This class
+     * must only be loaded on API 14 and later.
+     * 
+     * @author Tristan Waddington
+     */
+    private class MemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+        
+        @Override
+        public void onLowMemory() {
+            LazyImageLoader.this.onLowMemory();
+        }
+        
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // Pass
+        }
+    }
+    
+    /**
+     * An implementation of {@link LruCache} that measures each entry
+     * by the number of bytes used by its {@link Bitmap} rather than
+     * by the number of entries.
+     * 
+     * @author Tristan Waddington
+     */
+    private class BitmapLruCache extends LruCache<String, Bitmap> {
+        public BitmapLruCache(int maxSize) {
+            super(maxSize);
+        }
+        
+        /**
+         * Remove the least recently used entries until the cache is no
+         * larger than the given size.
+         */
+        public void trimToSize(int maxSize) {
+            // The snapshot is ordered from least to most recently used
+            for (String key : snapshot().keySet()) {
+                if (size() <= maxSize) {
+                    break;
+                }
+                remove(key);
+            }
+        }
+        
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return BitmapPool.sizeOf(bitmap);
+        }
+        
+        @Override
+        protected void entryRemoved(boolean evicted, String key,
+                Bitmap oldValue, Bitmap newValue) {
+            if (evicted) {
+                Log.d(TAG, String.format(
+                        "Evicted image '%s' from memory (%d evictions, %s of %s used).",
+                        key, evictionCount(), FileUtils.formatFileSize(size()),
+                        FileUtils.formatFileSize(maxSize())));
+            }
+            if (oldValue != newValue) {
+                onBitmapUncached(oldValue);
             }
         }
     }
@@ -2,117 +2,257 @@ package com.geoloqi.geotracks.widget;
 
 import java.text.DateFormatSymbols;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-
-import org.json.JSONObject;
+import java.util.Set;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.support.v4.widget.CursorAdapter;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.geoloqi.geotracks.R;
+import com.geoloqi.geotracks.db.LinkStore;
+import com.geoloqi.geotracks.db.LinkStore.Links;
+import com.geoloqi.geotracks.model.ShareLink;
 
 /**
- * This class is a simple implementation of ArrayAdapter and
- * should be used for displaying share link details in a list.
+ * This class is a simple implementation of {@link CursorAdapter} and
+ * should be used for displaying share link details from the
+ * {@link LinkStore} in a list.
+ * 
+ * <p>Rows are grouped into date sections by a {@link DateSectionIndexer}
+ * that is rebuilt once each time the cursor changes. The first row of
+ * each section shows the section header.</p>
+ * 
+ * <p>The created at date is formatted as each row is bound, with a
+ * format rebuilt for each cursor so it follows the current time zone
+ * and locale.</p>
+ * 
+ * <p>Rows can be checked for bulk actions. Checked rows are tracked by
+ * row id, so they stay checked when the cursor is reloaded.</p>
  * 
  * @author Tristan Waddington
  */
-public class LinkListAdapter extends ArrayAdapter<JSONObject> {
+public class LinkListAdapter extends CursorAdapter implements
+        ScrollPrefetcher.ImageUrlProvider, SectionIndexer {
     private LayoutInflater mInflater;
     
+    /** The ids of the checked rows. */
+    private final Set<Long> mCheckedIds = new HashSet<Long>();
+    private final int mCheckedColor;
+    
+    private DateSectionIndexer mSectionIndexer = DateSectionIndexer.EMPTY;
+    
+    /** The format of the created at date and a date to reuse with it. */
+    private SimpleDateFormat mDateFormat;
+    private final Date mDate = new Date();
+    
+    /** Shown in place of the location of a link being created. */
+    private final String mPendingLabel;
+    
+    /** The label of the date section for today. */
+    private final String mTodayLabel;
+    
+    private int mIdColumn;
+    private int mTokenColumn;
+    private int mActiveColumn;
+    private int mTitleColumn;
+    private int mDateCreatedColumn;
+    private int mLocationColumn;
+    
     public LinkListAdapter(Context context) {
-        super(context, R.layout.simple_text_list_item);
+        super(context, null, 0);
         
         // Get our layout inflater
         mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mCheckedColor = context.getResources().getColor(R.color.link_checked_background);
+        mPendingLabel = context.getString(R.string.link_pending);
+        mTodayLabel = context.getString(R.string.section_today);
     }
     
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        final ImageViewHolder holder;
-        
-        if (convertView == null) {
-            // Inflate our row layout
-            convertView = mInflater.inflate(
-                    R.layout.simple_text_list_item, parent, false);
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor != null) {
+            // Look up our column indexes once per cursor
+            mIdColumn = newCursor.getColumnIndexOrThrow(Links._ID);
+            mTokenColumn = newCursor.getColumnIndexOrThrow(Links.TOKEN);
+            mActiveColumn = newCursor.getColumnIndexOrThrow(Links.ACTIVE);
+            mTitleColumn = newCursor.getColumnIndexOrThrow(Links.TITLE);
+            mDateCreatedColumn = newCursor.getColumnIndexOrThrow(Links.DATE_CREATED);
+            mLocationColumn = newCursor.getColumnIndexOrThrow(Links.START_LOCATION_NAME);
             
-            // Cache the row elements for efficient retrieval
-            holder = new ImageViewHolder();
-            holder.text1 = (TextView) convertView.findViewById(R.id.text1);
-            holder.text2 = (TextView) convertView.findViewById(R.id.text2);
+            // Pick up any change to the time zone or locale
+            mDateFormat = newDateFormat();
             
-            // Store the holder object on the row
-            convertView.setTag(holder);
+            // Compute the sections once per cursor rather than per row
+            mSectionIndexer = DateSectionIndexer.fromCursor(newCursor,
+                    mDateCreatedColumn, System.currentTimeMillis(), mTodayLabel);
         } else {
-            holder = (ImageViewHolder) convertView.getTag();
+            mSectionIndexer = DateSectionIndexer.EMPTY;
         }
+        return super.swapCursor(newCursor);
+    }
+    
+    /**
+     * Get the link at the given position.
+     * 
+     * @param position
+     * @return the link; null if the position is out of range.
+     */
+    public ShareLink getLink(int position) {
+        Cursor cursor = (Cursor) getItem(position);
+        return cursor != null ? ShareLink.fromCursor(cursor) : null;
+    }
+    
+    /** Get the date sections of the current cursor. */
+    public DateSectionIndexer getSectionIndexer() {
+        return mSectionIndexer;
+    }
+    
+    @Override
+    public Object[] getSections() {
+        return mSectionIndexer.getSections();
+    }
+    
+    @Override
+    public int getPositionForSection(int section) {
+        return mSectionIndexer.getPositionForSection(section);
+    }
+    
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSectionIndexer.getSectionForPosition(position);
+    }
+    
+    /**
+     * Check or uncheck the row with the given id.
+     * 
+     * @param id
+     * @return true if the row is now checked.
+     */
+    public boolean toggleItemChecked(long id) {
+        boolean checked = mCheckedIds.add(id);
+        if (!checked) {
+            mCheckedIds.remove(id);
+        }
+        notifyDataSetChanged();
+        return checked;
+    }
+    
+    /** Uncheck every row. */
+    public void clearCheckedItems() {
+        if (!mCheckedIds.isEmpty()) {
+            mCheckedIds.clear();
+            notifyDataSetChanged();
+        }
+    }
+    
+    /** Get the number of checked rows. */
+    public int getCheckedItemCount() {
+        return mCheckedIds.size();
+    }
+    
+    /**
+     * Get the checked links in list order. Rows that are no longer in
+     * the cursor are skipped.
+     * 
+     * @return a new list of links.
+     */
+    public List<ShareLink> getCheckedLinks() {
+        List<ShareLink> links = new ArrayList<ShareLink>(mCheckedIds.size());
+        int count = getCount();
+        for (int i = 0; i < count && links.size() < mCheckedIds.size(); i++) {
+            if (mCheckedIds.contains(getItemId(i))) {
+                links.add(getLink(i));
+            }
+        }
+        return links;
+    }
+    
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        // Inflate our row layout
+        View view = mInflater.inflate(
+                R.layout.link_list_item, parent, false);
+        
+        // Cache the row elements for efficient retrieval
+        LinkViewHolder holder = new LinkViewHolder();
+        holder.header = (TextView) view.findViewById(R.id.header);
+        holder.row = view.findViewById(R.id.row);
+        holder.text1 = (TextView) view.findViewById(R.id.text1);
+        holder.text2 = (TextView) view.findViewById(R.id.text2);
+        
+        // Store the holder object on the row
+        view.setTag(holder);
+        return view;
+    }
+    
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        LinkViewHolder holder = (LinkViewHolder) view.getTag();
         
-        // Reset our row values
-        holder.text1.setText("");
-        holder.text2.setText("");
+        // Show the header on the first row of each section
+        int position = cursor.getPosition();
+        if (mSectionIndexer.isSectionStart(position)) {
+            holder.header.setText(mSectionIndexer.getSectionLabel(position));
+            holder.header.setVisibility(View.VISIBLE);
+        } else {
+            holder.header.setVisibility(View.GONE);
+        }
         
-        // Populate our data
-        JSONObject link = getItem(position);
+        // Highlight the row if it is checked
+        long id = cursor.getLong(mIdColumn);
+        holder.row.setBackgroundColor(mCheckedIds.contains(id) ? mCheckedColor : Color.TRANSPARENT);
         
         // Is the link still active?
         int flags = holder.text1.getPaintFlags();
-        
-        boolean isActive = link.optInt("currently_active") > 0;
-        if (!isActive) {
+        if (cursor.getInt(mActiveColumn) == 0) {
             holder.text1.setPaintFlags(flags | Paint.STRIKE_THRU_TEXT_FLAG);
         } else {
             holder.text1.setPaintFlags(flags & ~Paint.STRIKE_THRU_TEXT_FLAG);
         }
         
-        // Format the first line of text
-        String description = link.optString("description");
-        if (!TextUtils.isEmpty(description)) {
-            holder.text1.setText(description);
-        } else {
-            holder.text1.setText(link.optString("shortlink"));
-        }
+        holder.text1.setText(cursor.getString(mTitleColumn));
         
-        // Format the link created at timestamp
-        String createdAt = formatTimestamp(
-                link.optLong("date_created_ts") * 1000);
-        
-        // Format the second line of text
-        String locationName = link.optString("start_location_name");
+        // Show when and where the link was created
+        mDate.setTime(cursor.getLong(mDateCreatedColumn));
+        String createdAt = mDateFormat.format(mDate);
+        String locationName = ShareLink.isPendingToken(cursor.getString(mTokenColumn))
+                ? mPendingLabel : cursor.getString(mLocationColumn);
         if (!TextUtils.isEmpty(locationName)) {
-            holder.text2.setText(String.format("%s | %s",
-                    createdAt, locationName));
+            holder.text2.setText(createdAt + " | " + locationName);
         } else {
             holder.text2.setText(createdAt);
         }
-        
-        return convertView;
     }
     
-    /**
-     * Format the created_at timestamp.
-     * 
-     * @param timestamp
-     * @return a formatted String.
-     */
-    private String formatTimestamp(long timestamp) {
-        Date date = new Date(timestamp);
-        
-        // Create our date formatter
-        SimpleDateFormat formatter = new SimpleDateFormat("MMM d, h:mma",
-                Locale.US);
-        
-        // Override the default AM/PM String values
-        DateFormatSymbols symbols = formatter.getDateFormatSymbols();
-        symbols.setAmPmStrings(new String[] { "am", "pm" });
-        formatter.setDateFormatSymbols(symbols);
-        
-        return formatter.format(date);
+    /** Create the format used for the created at date. */
+    private static SimpleDateFormat newDateFormat() {
+        Locale locale = Locale.getDefault();
+        SimpleDateFormat format = new SimpleDateFormat("MMM d, h:mma", locale);
+        if (Locale.ENGLISH.getLanguage().equals(locale.getLanguage())) {
+            // Override the default AM/PM String values
+            DateFormatSymbols symbols = format.getDateFormatSymbols();
+            symbols.setAmPmStrings(new String[] { "am", "pm" });
+            format.setDateFormatSymbols(symbols);
+        }
+        return format;
+    }
+    
+    @Override
+    public String getImageUrl(int position) {
+        // Share link rows do not display an image yet
+        return null;
     }
 }
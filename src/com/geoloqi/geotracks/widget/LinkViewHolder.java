@@ -0,0 +1,17 @@
+package com.geoloqi.geotracks.widget;
+
+import android.view.View;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * A basic container class used to cache row
+ * values for a {@link ListView} item that may
+ * start a new section.
+ * 
+ * @author Tristan Waddington
+ */
+public class LinkViewHolder extends ImageViewHolder {
+    public TextView header;
+    public View row;
+}
@@ -0,0 +1,71 @@
+package com.geoloqi.geotracks.widget;
+
+import android.os.Build;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.TextView;
+
+/**
+ * <p>An {@link OnScrollListener} that keeps a header pinned over the
+ * top of a list showing the section of the first visible row. When the
+ * next section's header scrolls up to it, the pinned header is pushed
+ * up out of the way on Honeycomb and later.</p>
+ * 
+ * <p>Scroll events are passed on to another listener, since a list
+ * can only have one.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class PinnedSectionHeader implements OnScrollListener {
+    private final TextView mHeader;
+    private final LinkListAdapter mAdapter;
+    private final OnScrollListener mDelegate;
+    
+    /**
+     * @param header the view drawn over the top of the list.
+     * @param adapter the adapter providing the sections.
+     * @param delegate a listener to pass scroll events on to or null.
+     */
+    public PinnedSectionHeader(TextView header, LinkListAdapter adapter,
+            OnScrollListener delegate) {
+        mHeader = header;
+        mAdapter = adapter;
+        mDelegate = delegate;
+    }
+    
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (mDelegate != null) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+    
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem,
+            int visibleItemCount, int totalItemCount) {
+        if (mDelegate != null) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+        
+        DateSectionIndexer indexer = mAdapter.getSectionIndexer();
+        String label = totalItemCount > 0 ? indexer.getSectionLabel(firstVisibleItem) : null;
+        if (label == null) {
+            mHeader.setVisibility(View.GONE);
+            return;
+        }
+        
+        mHeader.setText(label);
+        mHeader.setVisibility(View.VISIBLE);
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Push the header up as the next section's header reaches it
+            float offset = 0;
+            View next = view.getChildAt(1);
+            if (next != null && indexer.isSectionStart(firstVisibleItem + 1)) {
+                offset = Math.min(0, next.getTop() - mHeader.getHeight());
+            }
+            mHeader.setTranslationY(offset);
+        }
+    }
+}
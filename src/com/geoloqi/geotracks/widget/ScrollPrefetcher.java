@@ -0,0 +1,175 @@
+package com.geoloqi.geotracks.widget;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.ListView;
+
+/**
+ * <p>An {@link OnScrollListener} that watches the direction and speed
+ * a {@link ListView} is scrolling in and asks the {@link LazyImageLoader}
+ * to prefetch the images of the rows that are about to come on screen.</p>
+ * 
+ * <p>Prefetching is paused during a fling, when rows go by too quickly
+ * for their images to matter, and any outstanding prefetches are
+ * cancelled so the rows the list settles on load first.</p>
+ * 
+ * @author Tristan Waddington
+ */
+public class ScrollPrefetcher implements OnScrollListener {
+    /** The default number of rows to prefetch ahead of the visible rows. */
+    public static final int DEFAULT_PREFETCH_DISTANCE = 6;
+    
+    /**
+     * The scroll speed in rows per second above which prefetching is
+     * skipped even if the list is not flinging.
+     */
+    private static final float MAX_PREFETCH_VELOCITY = 20;
+    
+    /**
+     * Provides the image url for a row of the list.
+     * 
+     * @author Tristan Waddington
+     */
+    public interface ImageUrlProvider {
+        /**
+         * Get the url of the image displayed in the given row.
+         * 
+         * @param position
+         * @return the image url; null if the row has no image.
+         */
+        public String getImageUrl(int position);
+    }
+    
+    private final LazyImageLoader mLoader;
+    private final ImageUrlProvider mProvider;
+    private final int mDistance;
+    
+    private int mScrollState = SCROLL_STATE_IDLE;
+    
+    /** The first visible row and the time it was last seen to change. */
+    private int mLastFirstVisible = -1;
+    private long mLastFirstVisibleTime;
+    
+    /** The scroll direction; 1 for down, -1 for up. */
+    private int mDirection = 1;
+    
+    /** The scroll speed in rows per second. */
+    private float mVelocity;
+    
+    /** The rows most recently prefetched; used to avoid repeating work. */
+    private int mPrefetchedFirst = -1;
+    private int mPrefetchedLast = -1;
+    
+    public ScrollPrefetcher(Context context, ImageUrlProvider provider) {
+        this(context, provider, DEFAULT_PREFETCH_DISTANCE);
+    }
+    
+    /**
+     * @param context
+     * @param provider the source of the image url for each row.
+     * @param distance the number of rows to prefetch ahead.
+     */
+    public ScrollPrefetcher(Context context, ImageUrlProvider provider,
+            int distance) {
+        mLoader = LazyImageLoader.getInstance(context);
+        mProvider = provider;
+        mDistance = distance;
+    }
+    
+    /** Get the last scroll direction; 1 for down, -1 for up. */
+    public int getDirection() {
+        return mDirection;
+    }
+    
+    /** Get the last measured scroll speed in rows per second. */
+    public float getVelocity() {
+        return mVelocity;
+    }
+    
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        
+        if (scrollState == SCROLL_STATE_FLING) {
+            // The rows we prefetched will fly by; let the list catch up
+            mLoader.cancelPrefetches();
+            resetPrefetched();
+        } else if (scrollState == SCROLL_STATE_IDLE) {
+            mVelocity = 0;
+            prefetch(view.getFirstVisiblePosition(), view.getChildCount(),
+                    view.getCount());
+        }
+    }
+    
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem,
+            int visibleItemCount, int totalItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (firstVisibleItem != mLastFirstVisible) {
+            if (mLastFirstVisible >= 0) {
+                int rows = firstVisibleItem - mLastFirstVisible;
+                long elapsed = Math.max(1, now - mLastFirstVisibleTime);
+                int direction = rows > 0 ? 1 : -1;
+                if (direction != mDirection) {
+                    // The rows ahead of us have changed
+                    mLoader.cancelPrefetches();
+                    resetPrefetched();
+                    mDirection = direction;
+                }
+                mVelocity = Math.abs(rows) * 1000f / elapsed;
+            }
+            mLastFirstVisible = firstVisibleItem;
+            mLastFirstVisibleTime = now;
+        }
+        
+        if (mScrollState != SCROLL_STATE_FLING
+                && mVelocity <= MAX_PREFETCH_VELOCITY) {
+            prefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+    
+    /** Forget which rows were prefetched so they are requested again. */
+    private void resetPrefetched() {
+        mPrefetchedFirst = -1;
+        mPrefetchedLast = -1;
+    }
+    
+    /**
+     * Prefetch the rows just past the visible rows in the direction of
+     * travel. Rows nearest the visible rows are requested last so that
+     * they are loaded first.
+     */
+    private void prefetch(int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (visibleItemCount <= 0 || totalItemCount <= 0) {
+            return;
+        }
+        
+        int first;
+        int last;
+        if (mDirection > 0) {
+            first = firstVisibleItem + visibleItemCount;
+            last = Math.min(first + mDistance, totalItemCount) - 1;
+        } else {
+            last = firstVisibleItem - 1;
+            first = Math.max(last - mDistance + 1, 0);
+        }
+        if (first > last || (first == mPrefetchedFirst && last == mPrefetchedLast)) {
+            return;
+        }
+        mPrefetchedFirst = first;
+        mPrefetchedLast = last;
+        
+        if (mDirection > 0) {
+            for (int i = last; i >= first; i--) {
+                mLoader.prefetch(mProvider.getImageUrl(i));
+            }
+        } else {
+            for (int i = first; i <= last; i++) {
+                mLoader.prefetch(mProvider.getImageUrl(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * The tokens of {@link JsonReader}, for running app code on a plain JVM.
+ *
+ * @author Tristan Waddington
+ */
+public enum JsonToken {
+    BEGIN_ARRAY,
+    END_ARRAY,
+    BEGIN_OBJECT,
+    END_OBJECT,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+}
@@ -0,0 +1,223 @@
+package com.geoloqi.geotracks.model;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONObject;
+
+/**
+ * <p>Compares {@link ShareLinkParser} with the JSONObject path it
+ * replaced, which read the whole body into a String, built a JSON tree
+ * of it and then converted the tree with
+ * {@link ShareLink#fromJsonArray}. Both parse the same generated
+ * link/list response at several sizes, up to more links than any
+ * account is likely to have.</p>
+ *
+ * <p>Three numbers are printed for each path. The time is the median
+ * of the measured runs. The allocation is everything one parse
+ * allocates, garbage included. The peak is the heap held at the
+ * point the most is live: for the JSONObject path the body, the tree
+ * and the finished list; for the parser the finished list only, since
+ * its reader holds a few kilobytes of buffers at most.</p>
+ *
+ * <p>This is a plain JVM program. Run it with "ant benchmark" from
+ * tests/jvm. The numbers come from a desktop JVM with Gson's reader
+ * standing in for the platform's, so compare the rows with each other
+ * rather than with a phone.</p>
+ *
+ * @author Tristan Waddington
+ */
+public class ShareLinkParserBenchmark {
+    private static final int[] LINK_COUNTS = new int[] { 100, 1000, 10000, 25000 };
+
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 15;
+
+    /** Whatever the parse being measured holds on to. */
+    private static List<Object> sHeld;
+
+    private static final String[] PLACES = new String[] {
+        "Portland, OR", "Seattle, WA", "San Francisco, CA", "Vancouver, BC",
+        "Zürich", "São Paulo", "Москва", "東京"
+    };
+
+    /** A single way of turning a response body into links. */
+    private interface Parse {
+        /**
+         * @param body
+         * @param held collects whatever the parse holds on to while the
+         *        list of links is built.
+         */
+        public List<ShareLink> parse(byte[] body, List<Object> held) throws Exception;
+    }
+
+    private static final String[] NAMES = new String[] {
+        "JSONObject (old)",
+        "ShareLinkParser"
+    };
+
+    private static final Parse[] PARSES = new Parse[] {
+        new Parse() {
+            @Override
+            public List<ShareLink> parse(byte[] body, List<Object> held) throws Exception {
+                String string = new String(body, "UTF-8");
+                JSONObject json = new JSONObject(string);
+                held.add(string);
+                held.add(json);
+                return ShareLink.fromJsonArray(json.getJSONArray("links"));
+            }
+        },
+        new Parse() {
+            @Override
+            public List<ShareLink> parse(byte[] body, List<Object> held) throws Exception {
+                return ShareLinkParser.parseLinkList(new ByteArrayInputStream(body));
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-7s %-9s %-18s %10s %14s %11s", "links",
+                "body", "path", "ms/parse", "allocated MB", "peak MB"));
+        for (int count : LINK_COUNTS) {
+            byte[] body = newLinkList(count);
+            for (int i = 0; i < PARSES.length; i++) {
+                System.out.println(String.format("%-7d %-9s %-18s %10.2f %14.2f %11.2f",
+                        count, formatSize(body.length), NAMES[i], time(PARSES[i], body),
+                        allocated(PARSES[i], body) / 1e6, peak(PARSES[i], body) / 1e6));
+            }
+            verify(body, count);
+        }
+    }
+
+    /** Check that every path reads the same links from a body. */
+    private static void verify(byte[] body, int count) throws Exception {
+        List<ShareLink> expected = null;
+        for (int i = 0; i < PARSES.length; i++) {
+            List<ShareLink> links = PARSES[i].parse(body, new ArrayList<Object>());
+            if (links.size() != count) {
+                throw new IllegalStateException(String.format(
+                        "%s read %d links instead of %d!", NAMES[i], links.size(), count));
+            }
+            if (expected == null) {
+                expected = links;
+            } else if (!expected.equals(links)) {
+                throw new IllegalStateException(String.format(
+                        "%s read different links than %s!", NAMES[i], NAMES[0]));
+            }
+        }
+    }
+
+    /** Return the median time of a parse in milliseconds. */
+    private static double time(Parse parse, byte[] body) throws Exception {
+        long[] elapsed = new long[MEASURED_RUNS];
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            parse.parse(body, new ArrayList<Object>());
+            if (run >= WARMUP_RUNS) {
+                elapsed[run - WARMUP_RUNS] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(elapsed);
+        return elapsed[MEASURED_RUNS / 2] / 1e6;
+    }
+
+    /** Return the bytes a parse allocates; -1 if the JVM cannot tell. */
+    private static long allocated(Parse parse, byte[] body) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+        long id = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(id);
+        parse.parse(body, new ArrayList<Object>());
+        return bean.getThreadAllocatedBytes(id) - before;
+    }
+
+    /**
+     * Return the bytes held on the heap at the peak of a parse, which is
+     * how much releasing everything the parse held frees again.
+     */
+    private static long peak(Parse parse, byte[] body) throws Exception {
+        // Hold everything from a static field; whether a local is still
+        // reachable is up to the JIT
+        sHeld = new ArrayList<Object>();
+        sHeld.add(parse.parse(body, sHeld));
+        long held = usedHeap();
+        sHeld = null;
+        return held - usedHeap();
+    }
+
+    /** Collect garbage and return the heap that is left in use. */
+    private static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Generate a link/list response with the given number of links.
+     * Each link has the fields the API sends, including ones that
+     * {@link ShareLink} does not use, some of them null.
+     */
+    private static byte[] newLinkList(int count) throws Exception {
+        Random random = new Random(count);
+        long now = 1350000000L;
+        StringBuilder json = new StringBuilder(count * 512);
+        json.append("{\"links\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            String token = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+            long created = now - (long) i * 3600 - random.nextInt(3600);
+            int minutes = 15 * (1 + random.nextInt(16));
+            boolean active = i < 3;
+            String place = PLACES[random.nextInt(PLACES.length)];
+
+            json.append('{');
+            appendField(json, "token", token).append(',');
+            appendField(json, "shortlink", "http://geoloqi.com/" + token).append(',');
+            appendField(json, "description", random.nextInt(5) == 0 ? ""
+                    : "Heading to \"" + place + "\" #" + i).append(',');
+            appendField(json, "start_location_name", place).append(',');
+            json.append("\"date_created_ts\":").append(created).append(',');
+            appendField(json, "date_created", String.format(
+                    "2012-10-%02dT%02d:%02d:00-07:00", 1 + i % 28, i % 24, i % 60)).append(',');
+            json.append("\"date_expires_ts\":").append(created + minutes * 60).append(',');
+            json.append("\"minutes\":").append(minutes).append(',');
+            json.append("\"currently_active\":").append(active ? 1 : 0).append(',');
+            json.append("\"start_location\":{\"latitude\":")
+                    .append(45 + random.nextDouble()).append(",\"longitude\":")
+                    .append(-122 - random.nextDouble()).append("},");
+            json.append("\"end_location\":null,");
+            appendField(json, "profile_image",
+                    "https://geoloqi.s3.amazonaws.com/profile/" + token + ".png");
+            json.append('}');
+        }
+        json.append("],\"count\":").append(count).append('}');
+        return json.toString().getBytes("UTF-8");
+    }
+
+    private static StringBuilder appendField(StringBuilder json, String name, String value) {
+        json.append('"').append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c);
+        }
+        return json.append('"');
+    }
+
+    private static String formatSize(long size) {
+        return size >= 1000 * 1000 ? String.format("%.1fMB", size / 1e6)
+                : String.format("%.0fKB", size / 1e3);
+    }
+}
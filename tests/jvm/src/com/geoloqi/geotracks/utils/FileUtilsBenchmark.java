@@ -0,0 +1,186 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+/**
+ * <p>Compares the ways {@link FileUtils} writes to disk with the buffered
+ * stream copy it used to make, for several payload sizes. Stream sources
+ * are read from memory so only the copy itself is measured; file sources
+ * are read from a file of the same size.</p>
+ *
+ * <p>This is a plain JVM program. Run it with "ant benchmark" from
+ * tests/jvm, and pass "sync" as an argument to flush every copy to the
+ * storage device. The numbers come from a desktop JVM, not a device,
+ * so compare the rows with each other rather than with a phone.</p>
+ *
+ * @author Tristan Waddington
+ */
+public class FileUtilsBenchmark {
+    private static final int[] SIZES = new int[] {
+        4 * FileUtils.ONE_KB, 64 * FileUtils.ONE_KB, FileUtils.ONE_MB, 16 * FileUtils.ONE_MB
+    };
+
+    /** Roughly how many bytes each measurement copies. */
+    private static final long BYTES_PER_RUN = 128L * FileUtils.ONE_MB;
+
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    /** A single way of getting a payload onto disk. */
+    private interface Copy {
+        public void copy(byte[] payload, File source, File target, boolean sync)
+                throws IOException;
+    }
+
+    private static final String[] NAMES = new String[] {
+        "stream, buffered streams (old)",
+        "stream, reused byte[]",
+        "stream, channel + direct buffer",
+        "file, buffered streams (old)",
+        "file, writeFileToDisk channel",
+        "file, copyFile"
+    };
+
+    private static final Copy[] COPIES = new Copy[] {
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                writeWithBufferedStreams(target, new ByteArrayInputStream(payload), sync);
+            }
+        },
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                FileUtils.writeFileToDisk(target, new ByteArrayInputStream(payload), sync);
+            }
+        },
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                FileUtils.writeFileToDisk(target,
+                        Channels.newChannel(new ByteArrayInputStream(payload)), sync);
+            }
+        },
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                writeWithBufferedStreams(target, new FileInputStream(source), sync);
+            }
+        },
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                FileUtils.writeFileToDisk(target, new FileInputStream(source), sync);
+            }
+        },
+        new Copy() {
+            @Override
+            public void copy(byte[] payload, File source, File target, boolean sync)
+                    throws IOException {
+                FileUtils.copyFile(source, target, sync);
+            }
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        boolean sync = args.length > 0 && "sync".equals(args[0]);
+
+        File dir = File.createTempFile("FileUtilsBenchmark", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            System.out.println(String.format("%-10s %-34s %10s %12s", "size",
+                    "path", "MB/s", "us/copy"));
+            Random random = new Random(0);
+            for (int size : SIZES) {
+                byte[] payload = new byte[size];
+                random.nextBytes(payload);
+                File source = new File(dir, "source");
+                FileOutputStream out = new FileOutputStream(source);
+                try {
+                    out.write(payload);
+                } finally {
+                    out.close();
+                }
+
+                int copies = (int) Math.max(1, BYTES_PER_RUN / size);
+                if (sync) {
+                    // Every copy waits for the device; keep the run short
+                    copies = Math.max(1, copies / 64);
+                }
+                for (int i = 0; i < COPIES.length; i++) {
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                        long elapsed = time(COPIES[i], payload, source,
+                                new File(dir, "target"), sync, copies);
+                        if (run >= WARMUP_RUNS) {
+                            best = Math.min(best, elapsed);
+                        }
+                    }
+                    double seconds = best / 1e9;
+                    System.out.println(String.format("%-10s %-34s %10.1f %12.1f",
+                            FileUtils.formatFileSize(size), NAMES[i],
+                            (double) size * copies / FileUtils.ONE_MB / seconds,
+                            best / 1e3 / copies));
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /** Run a copy a number of times and return the elapsed nanoseconds. */
+    private static long time(Copy copy, byte[] payload, File source, File target,
+            boolean sync, int copies) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < copies; i++) {
+            copy.copy(payload, source, target, sync);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (target.length() != payload.length) {
+            throw new IllegalStateException(String.format(
+                    "Copied %d bytes instead of %d!", target.length(), payload.length));
+        }
+        return elapsed;
+    }
+
+    /** The copy FileUtils.writeFileToDisk made before it used channels. */
+    private static void writeWithBufferedStreams(File file, InputStream inputStream,
+            boolean sync) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(
+                inputStream, FileUtils.BUFFER_SIZE);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(
+                outputStream, FileUtils.BUFFER_SIZE);
+
+        try {
+            int lengthRead = 0;
+            byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+            while ((lengthRead = bufferedInputStream.read(buffer)) != -1) {
+                bufferedOutputStream.write(buffer, 0, lengthRead);
+            }
+            bufferedOutputStream.flush();
+            if (sync) {
+                outputStream.getFD().sync();
+            }
+        } finally {
+            bufferedInputStream.close();
+            bufferedOutputStream.close();
+        }
+    }
+}
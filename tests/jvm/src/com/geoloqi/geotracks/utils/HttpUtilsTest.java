@@ -0,0 +1,298 @@
+package com.geoloqi.geotracks.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+/**
+ * <p>Checks that a client from {@link HttpUtils#newPooledHttpClient}
+ * reuses its connections. Images are fetched from a local stand-in
+ * server the way LazyImageLoader fetches them, and the server counts
+ * how many connections it had to accept.</p>
+ *
+ * <p>This is a plain JVM program. Run it with "ant test" from
+ * tests/jvm; it exits with an error if a check fails.</p>
+ *
+ * @author Tristan Waddington
+ */
+public class HttpUtilsTest {
+    /** Match the pool LazyImageLoader creates. */
+    private static final int DOWNLOAD_THREAD_COUNT = 3;
+    private static final int HTTP_CONNECT_TIMEOUT = 2500;
+    private static final int HTTP_SOCKET_TIMEOUT = 5000;
+    private static final long HTTP_POOL_TIMEOUT = 30 * 1000;
+
+    /** The number of images to fetch in each pass. */
+    private static final int FETCH_COUNT = 200;
+
+    /** The size of each image. */
+    private static final int IMAGE_SIZE = 24 * FileUtils.ONE_KB;
+
+    public static void main(String[] args) throws Exception {
+        byte[] image = new byte[IMAGE_SIZE];
+        new Random(0).nextBytes(image);
+
+        StandInServer server = new StandInServer(image);
+        server.start();
+        try {
+            DefaultHttpClient client = HttpUtils.newPooledHttpClient(DOWNLOAD_THREAD_COUNT,
+                    DOWNLOAD_THREAD_COUNT, HTTP_CONNECT_TIMEOUT, HTTP_SOCKET_TIMEOUT,
+                    HTTP_POOL_TIMEOUT);
+            try {
+                testSequentialFetches(client, server, image);
+                testConcurrentFetches(client, server, image);
+            } finally {
+                client.getConnectionManager().shutdown();
+            }
+        } finally {
+            server.stop();
+        }
+        System.out.println("OK");
+    }
+
+    /** Fetch one image after another on a single thread. */
+    private static void testSequentialFetches(DefaultHttpClient client,
+            StandInServer server, byte[] image) throws Exception {
+        server.reset();
+        for (int i = 0; i < FETCH_COUNT; i++) {
+            fetch(client, server.getUrl(i), image);
+        }
+        report("sequential", server);
+        check(server.getRequestCount() == FETCH_COUNT, "Served %d of %d requests!",
+                server.getRequestCount(), FETCH_COUNT);
+        check(server.getConnectionCount() == 1, "Opened %d connections for %d fetches!",
+                server.getConnectionCount(), FETCH_COUNT);
+    }
+
+    /** Fetch images on as many threads as the loader downloads with. */
+    private static void testConcurrentFetches(final DefaultHttpClient client,
+            final StandInServer server, final byte[] image) throws Exception {
+        server.reset();
+        ExecutorService executor = Executors.newFixedThreadPool(DOWNLOAD_THREAD_COUNT);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < FETCH_COUNT; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        fetch(client, server.getUrl(index), image);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        report("concurrent", server);
+        check(server.getRequestCount() == FETCH_COUNT, "Served %d of %d requests!",
+                server.getRequestCount(), FETCH_COUNT);
+        check(server.getConnectionCount() <= DOWNLOAD_THREAD_COUNT,
+                "Opened %d connections for %d fetches on %d threads!",
+                server.getConnectionCount(), FETCH_COUNT, DOWNLOAD_THREAD_COUNT);
+    }
+
+    /** Fetch and read a whole image, the way the loader does. */
+    private static void fetch(DefaultHttpClient client, String url, byte[] image)
+            throws IOException {
+        HttpResponse response = client.execute(new HttpGet(url));
+        int status = response.getStatusLine().getStatusCode();
+        check(status == HttpStatus.SC_OK, "Got status %d for %s!", status, url);
+
+        HttpEntity entity = response.getEntity();
+        InputStream content = entity.getContent();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(IMAGE_SIZE);
+            byte[] buffer = new byte[FileUtils.BUFFER_SIZE];
+            int count;
+            while ((count = content.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            check(Arrays.equals(out.toByteArray(), image), "Bad image from %s!", url);
+        } finally {
+            content.close();
+        }
+    }
+
+    private static void report(String name, StandInServer server) {
+        System.out.println(String.format("%-12s %d fetches, %d connections", name,
+                server.getRequestCount(), server.getConnectionCount()));
+    }
+
+    private static void check(boolean condition, String format, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(format, args));
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 server that keeps connections alive and counts
+     * them. Every other image is sent gzip encoded when the client
+     * accepts it, so both kinds of entity are read to the end.
+     */
+    private static class StandInServer implements Runnable {
+        private final byte[] mImage;
+        private final byte[] mGzippedImage;
+        private final ServerSocket mServerSocket;
+        private final List<Socket> mSockets = new ArrayList<Socket>();
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        private Thread mThread;
+
+        public StandInServer(byte[] image) throws IOException {
+            mImage = image;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(image);
+            gzip.close();
+            mGzippedImage = out.toByteArray();
+            mServerSocket = new ServerSocket(0);
+        }
+
+        public String getUrl(int index) {
+            return String.format("http://127.0.0.1:%d/images/%d.png",
+                    mServerSocket.getLocalPort(), index);
+        }
+
+        public int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        public int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        public void reset() {
+            mConnectionCount.set(0);
+            mRequestCount.set(0);
+        }
+
+        public void start() {
+            mThread = new Thread(this, "StandInServer");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        public void stop() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnectionCount.incrementAndGet();
+                    synchronized (mSockets) {
+                        mSockets.add(socket);
+                    }
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "StandInServer-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Pass, the server was stopped
+            }
+        }
+
+        /** Answer requests on a connection until the client closes it. */
+        private void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    String requestLine = readLine(in);
+                    if (requestLine == null) {
+                        break;
+                    }
+
+                    boolean acceptsGzip = false;
+                    String header;
+                    while ((header = readLine(in)) != null && header.length() > 0) {
+                        if (header.toLowerCase().startsWith("accept-encoding:")
+                                && header.toLowerCase().contains("gzip")) {
+                            acceptsGzip = true;
+                        }
+                    }
+
+                    int index = mRequestCount.getAndIncrement();
+                    boolean gzip = acceptsGzip && index % 2 == 1;
+                    byte[] body = gzip ? mGzippedImage : mImage;
+                    StringBuilder response = new StringBuilder();
+                    response.append("HTTP/1.1 200 OK\r\n");
+                    response.append("Content-Type: image/png\r\n");
+                    response.append("Content-Length: ").append(body.length).append("\r\n");
+                    if (gzip) {
+                        response.append("Content-Encoding: gzip\r\n");
+                    }
+                    response.append("Connection: keep-alive\r\n");
+                    response.append("\r\n");
+                    out.write(response.toString().getBytes("US-ASCII"));
+                    out.write(body);
+                    out.flush();
+                }
+            } catch (SocketException e) {
+                // Pass, the connection was closed
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Pass
+                }
+            }
+        }
+
+        /** Read a CRLF terminated line; null at the end of the stream. */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}